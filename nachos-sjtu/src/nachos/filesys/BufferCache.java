@@ -0,0 +1,337 @@
+package nachos.filesys;
+
+import java.util.Arrays;
+
+import nachos.machine.Disk;
+import nachos.machine.Lib;
+import nachos.machine.SynchDisk;
+import nachos.threads.Condition;
+import nachos.threads.Lock;
+
+/**
+ * BufferCache keeps recently used disk sectors in memory, so that the filesystem
+ * does not pay a seek and a rotation for every small read or write.
+ * Writes only dirty the cached copy; dirty sectors are written back when they are evicted,
+ * or by flush() (called periodically by the flusher thread and when the kernel terminates).
+ *
+ * Sectors are evicted either LRU, or by 2Q: a sector enters a FIFO probation queue on its first miss,
+ * and only moves to the LRU main queue if it is missed again soon after being evicted from probation,
+ * so that a one-off scan through a large file does not flush the sectors that are used over and over.
+ *
+ * Everything is kept in arrays indexed by slot, with a map from sector to slot, so a hit is O(1).
+ * A slot is busy while its sector is being read or written; the disk I/O is done without the lock,
+ * and anyone who wants a busy slot waits for it.
+ */
+public class BufferCache
+{
+  /** the most sectors flush() writes in one disk operation */
+  private static final int MAX_RUN = 16;
+
+  /** the queues a slot can be on */
+  private static final int FREE = 0, PROBATION = 1, MAIN = 2;
+
+  private SynchDisk disk;
+
+  /** whether to use 2Q rather than plain LRU */
+  private boolean twoQueue;
+
+  /** the most slots the probation queue may hold before it is evicted from first */
+  private int probationLimit;
+
+  /** the cached data, one sector per slot */
+  private byte[] data;
+
+  /** for each slot: its sector, whether it is dirty or busy, its queue and its neighbours there */
+  private int[] sector;
+  private boolean[] dirty, busy;
+  private int[] queue, prev, next;
+
+  /** head (least recently used) and tail of each queue, and the number of slots on it */
+  private int[] head = new int[3], tail = new int[3], count = new int[3];
+
+  /** the slot holding each sector, or -1 */
+  private int[] slot = new int[Disk.NumSectors];
+
+  /** 2Q: the sectors recently evicted from probation, in a ring, and whether each sector is among them */
+  private int[] ghosts;
+  private int ghostNext;
+  private boolean[] ghost = new boolean[Disk.NumSectors];
+
+  private Lock lock = new Lock();
+  private Condition changed = new Condition(lock);
+
+  /**
+   * @param capacity
+   *          the number of sectors to cache
+   * @param twoQueue
+   *          whether to evict by 2Q rather than LRU
+   */
+  public BufferCache (SynchDisk disk, int capacity, boolean twoQueue)
+  {
+    Lib.assertTrue(capacity > 0);
+    this.disk = disk;
+    this.twoQueue = twoQueue;
+    probationLimit = Math.max(1, capacity / 4);
+    data = new byte[capacity * Disk.SectorSize];
+    sector = new int[capacity];
+    dirty = new boolean[capacity];
+    busy = new boolean[capacity];
+    queue = new int[capacity];
+    prev = new int[capacity];
+    next = new int[capacity];
+    for (int i = 0; i < 3; ++i)
+      head[i] = tail[i] = -1;
+    for (int i = 0; i < capacity; ++i)
+    {
+      sector[i] = -1;
+      link(i, FREE);
+    }
+    for (int i = 0; i < Disk.NumSectors; ++i)
+      slot[i] = -1;
+    ghosts = new int[Math.max(1, capacity / 2)];
+    for (int i = 0; i < ghosts.length; ++i)
+      ghosts[i] = -1;
+  }
+
+  /** read length bytes at offset in sector sec into buffer */
+  public void read (int sec, int offset, byte[] buffer, int start, int length)
+  {
+    Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= Disk.SectorSize);
+    lock.acquire();
+    int s = get(sec, false);
+    System.arraycopy(data, s * Disk.SectorSize + offset, buffer, start, length);
+    lock.release();
+  }
+
+  /** write length bytes from buffer at offset in sector sec; a whole sector is not read first */
+  public void write (int sec, int offset, byte[] buffer, int start, int length)
+  {
+    Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= Disk.SectorSize);
+    lock.acquire();
+    int s = get(sec, length == Disk.SectorSize);
+    System.arraycopy(buffer, start, data, s * Disk.SectorSize + offset, length);
+    dirty[s] = true;
+    lock.release();
+  }
+
+  /** forget sector sec without writing it back, once it has been freed */
+  public void discard (int sec)
+  {
+    lock.acquire();
+    int s;
+    while ((s = slot[sec]) != -1 && busy[s])
+      changed.sleep();
+    if (s != -1)
+    {
+      slot[sec] = -1;
+      sector[s] = -1;
+      dirty[s] = false;
+      unlink(s);
+      link(s, FREE);
+    }
+    ghost[sec] = false;
+    lock.release();
+  }
+
+  /**
+   * write every dirty sector back to the disk, sorted by sector,
+   * with each run of consecutive sectors written in one disk operation
+   */
+  public void flush ()
+  {
+    lock.acquire();
+    int[] pending = new int[sector.length];
+    int n = 0;
+    for (int s = 0; s < sector.length; ++s)
+    {
+      while (busy[s])
+        changed.sleep();
+      if (dirty[s])
+        pending[n++] = sector[s];
+    }
+    Arrays.sort(pending, 0, n);
+
+    byte[] run = new byte[MAX_RUN * Disk.SectorSize];
+    int first = -1, length = 0;
+    for (int i = 0; i < n; ++i)
+    {
+      // the lock was released by earlier writes, so the sector may have been written back, evicted or reused
+      int s = slot[pending[i]];
+      if (s == -1 || !dirty[s] || busy[s])
+        continue;
+      if (length > 0 && (pending[i] != first + length || length == MAX_RUN))
+      {
+        writeRun(first, length, run);
+        length = 0;
+        --i;
+        continue;
+      }
+      if (length == 0)
+        first = pending[i];
+      busy[s] = true;
+      dirty[s] = false;
+      System.arraycopy(data, s * Disk.SectorSize, run, length * Disk.SectorSize, Disk.SectorSize);
+      ++length;
+    }
+    if (length > 0)
+      writeRun(first, length, run);
+    lock.release();
+  }
+
+  /**
+   * Return the slot holding sector sec, reading it in unless the whole of it is about to be written.
+   */
+  private int get (int sec, boolean whole)
+  {
+    while (true)
+    {
+      int s = slot[sec];
+      if (s != -1)
+      {
+        if (busy[s])
+        {
+          changed.sleep();
+          continue;
+        }
+        disk.cacheHit();
+        if (queue[s] == MAIN)
+        {
+          unlink(s);
+          link(s, MAIN);
+        }
+        return s;
+      }
+
+      s = victim();
+      if (s == -1)
+        continue;
+      if (sector[s] != -1)
+        evict(s);
+
+      disk.cacheMiss();
+      sector[s] = sec;
+      slot[sec] = s;
+      unlink(s);
+      link(s, (!twoQueue || ghost[sec]) ? MAIN : PROBATION);
+      ghost[sec] = false;
+      if (!whole)
+      {
+        busy[s] = true;
+        lock.release();
+        disk.readSector(sec, data, s * Disk.SectorSize);
+        lock.acquire();
+        busy[s] = false;
+        changed.wakeAll();
+      }
+      return s;
+    }
+  }
+
+  /**
+   * Return a slot to reuse, which is clean and not busy, or -1 if the lock had to be released
+   * (to write a victim back, or to wait for one) and the caller should look again.
+   */
+  private int victim ()
+  {
+    if (head[FREE] != -1)
+      return head[FREE];
+
+    int s = -1;
+    if (count[PROBATION] > probationLimit || count[MAIN] == 0)
+      s = oldest(PROBATION);
+    if (s == -1)
+      s = oldest(MAIN);
+    if (s == -1)
+      s = oldest(PROBATION);
+    if (s == -1)
+    {
+      changed.sleep();
+      return -1;
+    }
+    if (dirty[s])
+    {
+      writeBack(s);
+      return -1;
+    }
+    return s;
+  }
+
+  /** the least recently used slot on queue q that is not busy, or -1 */
+  private int oldest (int q)
+  {
+    for (int s = head[q]; s != -1; s = next[s])
+      if (!busy[s])
+        return s;
+    return -1;
+  }
+
+  /** forget the clean sector in slot s, remembering it as a ghost if it was on probation */
+  private void evict (int s)
+  {
+    int sec = sector[s];
+    slot[sec] = -1;
+    sector[s] = -1;
+    if (queue[s] == PROBATION)
+    {
+      if (ghosts[ghostNext] != -1)
+        ghost[ghosts[ghostNext]] = false;
+      ghosts[ghostNext] = sec;
+      ghost[sec] = true;
+      ghostNext = (ghostNext + 1) % ghosts.length;
+    }
+  }
+
+  /** write length sectors from first, already copied to run and marked busy, releasing the lock meanwhile */
+  private void writeRun (int first, int length, byte[] run)
+  {
+    lock.release();
+    disk.writeSectors(first, length, run, 0);
+    for (int i = 0; i < length; ++i)
+      disk.cacheWriteBack();
+    lock.acquire();
+    for (int i = 0; i < length; ++i)
+      busy[slot[first + i]] = false;
+    changed.wakeAll();
+  }
+
+  /** write the dirty slot s back, releasing the lock meanwhile */
+  private void writeBack (int s)
+  {
+    busy[s] = true;
+    dirty[s] = false;
+    lock.release();
+    disk.writeSector(sector[s], data, s * Disk.SectorSize);
+    disk.cacheWriteBack();
+    lock.acquire();
+    busy[s] = false;
+    changed.wakeAll();
+  }
+
+  /** append slot s to queue q, as its most recently used */
+  private void link (int s, int q)
+  {
+    queue[s] = q;
+    prev[s] = tail[q];
+    next[s] = -1;
+    if (tail[q] == -1)
+      head[q] = s;
+    else
+      next[tail[q]] = s;
+    tail[q] = s;
+    count[q]++;
+  }
+
+  private void unlink (int s)
+  {
+    int q = queue[s];
+    if (prev[s] == -1)
+      head[q] = next[s];
+    else
+      next[prev[s]] = next[s];
+    if (next[s] == -1)
+      tail[q] = prev[s];
+    else
+      prev[next[s]] = prev[s];
+    count[q]--;
+  }
+}
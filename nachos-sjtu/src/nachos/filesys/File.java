@@ -1,5 +1,6 @@
 package nachos.filesys;
 
+import nachos.machine.Disk;
 import nachos.machine.OpenFile;
 
 /**
@@ -56,13 +57,32 @@ public class File extends OpenFile
   
   public int read (int pos, byte[] buffer, int start, int limit)
   {
-    //TODO implement this
-    return 0;
+    if (pos < 0 || limit < 0)
+      return -1;
+    int length = Math.max(0, Math.min(limit, inode.file_size - pos));
+    for (int done = 0; done < length;)
+    {
+      int offset = (pos + done) % Disk.SectorSize;
+      int amount = Math.min(Disk.SectorSize - offset, length - done);
+      FilesysKernel.bufferCache.read(inode.getSector(pos + done), offset, buffer, start + done, amount);
+      done += amount;
+    }
+    return length;
   }
   
   public int write (int pos, byte[] buffer, int start, int limit)
   {
-    //TODO implement this
-    return 0;
+    if (pos < 0 || limit < 0)
+      return -1;
+    if (pos + limit > inode.file_size && !inode.setFileSize(pos + limit, pos, pos + limit))
+      return -1;
+    for (int done = 0; done < limit;)
+    {
+      int offset = (pos + done) % Disk.SectorSize;
+      int amount = Math.min(Disk.SectorSize - offset, limit - done);
+      FilesysKernel.bufferCache.write(inode.getSector(pos + done), offset, buffer, start + done, amount);
+      done += amount;
+    }
+    return limit;
   }
 }
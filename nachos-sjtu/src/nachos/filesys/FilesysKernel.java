@@ -1,6 +1,10 @@
 package nachos.filesys;
 
 import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.ThreadedKernel;
 import nachos.vm.VMKernel;
 
 /**
@@ -14,6 +18,12 @@ public class FilesysKernel extends VMKernel
   
   public static RealFileSystem realFileSystem;
   
+  /** the sector cache every disk access of the filesystem goes through */
+  public static BufferCache bufferCache;
+  
+  /** how often the flusher writes dirty sectors back, in ticks (0 for never) */
+  private static int flushTicks;
+  
   public FilesysKernel ()
   {
     super();
@@ -23,6 +33,24 @@ public class FilesysKernel extends VMKernel
   {
     super.initialize(args);
     boolean format = Config.getBoolean("FilesysKernel.format");
+    String policy = Config.getString("FilesysKernel.cachePolicy", "2q");
+    Lib.assertTrue(policy.equalsIgnoreCase("2q") || policy.equalsIgnoreCase("lru"),
+        "FilesysKernel.cachePolicy must be 2q or lru, not " + policy);
+    bufferCache = new BufferCache(Machine.synchDisk(),
+        Config.getInteger("FilesysKernel.cacheSectors", 64),
+        policy.equalsIgnoreCase("2q"));
+    flushTicks = Config.getInteger("FilesysKernel.flushTicks", 100000);
+    Lib.assertTrue(flushTicks >= 0);
+    if (flushTicks > 0)
+    {
+      new KThread(new Runnable()
+      {
+        public void run ()
+        {
+          flusher();
+        }
+      }).setName("flusher").fork();
+    }
     fileSystem = realFileSystem = new RealFileSystem();
     realFileSystem.init(format);
   }
@@ -35,6 +63,17 @@ public class FilesysKernel extends VMKernel
   public void terminate ()
   {
     realFileSystem.finish();
+    bufferCache.flush();
     super.terminate();
   }
+  
+  /** write dirty sectors back every flushTicks, so that little is lost if nachos dies */
+  private static void flusher ()
+  {
+    while (true)
+    {
+      ThreadedKernel.alarm.waitUntil(flushTicks);
+      bufferCache.flush();
+    }
+  }
 }
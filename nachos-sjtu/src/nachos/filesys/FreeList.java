@@ -1,12 +1,11 @@
 package nachos.filesys;
 
-import java.util.LinkedList;
 import nachos.machine.Disk;
 import nachos.machine.Lib;
 
 /**
  * FreeList is a single special file used to manage free space of the filesystem.
- * It maintains a list of sector numbers to indicate those that are available to use.
+ * It maintains a bitmap of the sectors, with a bit set for each one in use.
  * When there's a need to allocate a new sector in the filesystem, call allocate().
  * And you should call deallocate() to free space at a appropriate time (eg. when a file is deleted) for reuse in the future.
  * 
@@ -20,43 +19,124 @@ public class FreeList extends File
   /** size occupied in the disk (bitmap) */
   static int size = Lib.divRoundUp(Disk.NumSectors, 8);
   
-  /** maintain address of all the free sectors */
-  private LinkedList<Integer> free_list;
+  /** the bitmap of sectors in use, saved as it is */
+  private byte[] bitmap;
+  
+  /** the number of free sectors */
+  private int free_count;
+  
+  /** where the last allocation was, to start the next search from */
+  private int next;
   
   public FreeList (INode inode)
   {
     super(inode);
-    free_list = new LinkedList<Integer>();
+    bitmap = new byte[size];
   }
   
   public void init ()
   {
-    for (int i = 2; i < Disk.NumSectors; ++i)
-      free_list.add(i);
+    for (int i = 0; i < size; ++i)
+      bitmap[i] = 0;
+    free_count = Disk.NumSectors;
+    next = 2;
+    mark(STATIC_ADDR);
+    mark(Folder.STATIC_ADDR);
   }
   
   /** allocate a new sector in the disk */
   public int allocate ()
   {
-    //TODO implement this
-    return 0;
+    return allocate(next);
+  }
+  
+  /**
+   * allocate sector goal if it is free, else the first free sector after it (wrapping around),
+   * so that a file that grows one sector at a time stays contiguous.
+   *
+   * @return the sector, or -1 if the disk is full
+   */
+  public int allocate (int goal)
+  {
+    if (free_count == 0)
+      return -1;
+    int sec = goal < 0 || goal >= Disk.NumSectors ? 0 : goal;
+    while ((bitmap[sec >> 3] & (1 << (sec & 7))) != 0)
+    {
+      // skip whole bytes of used sectors
+      if ((sec & 7) == 0 && bitmap[sec >> 3] == (byte) 0xff)
+        sec += 8;
+      else
+        ++sec;
+      if (sec >= Disk.NumSectors)
+        sec = 0;
+    }
+    mark(sec);
+    next = sec + 1;
+    return sec;
+  }
+  
+  /**
+   * allocate the last free sector in the disk, for blocks such as extent blocks
+   * that should keep out of the way of files growing upward from their goals.
+   *
+   * @return the sector, or -1 if the disk is full
+   */
+  public int allocateLast ()
+  {
+    if (free_count == 0)
+      return -1;
+    int sec = Disk.NumSectors - 1;
+    while ((bitmap[sec >> 3] & (1 << (sec & 7))) != 0)
+    {
+      // skip whole bytes of used sectors
+      if ((sec & 7) == 7 && bitmap[sec >> 3] == (byte) 0xff)
+        sec -= 8;
+      else
+        --sec;
+    }
+    mark(sec);
+    return sec;
   }
   
   /** deallocate a sector to be reused */
   public void deallocate (int sec)
   {
-    //TODO implement this
+    Lib.assertTrue(sec >= 0 && sec < Disk.NumSectors && (bitmap[sec >> 3] & (1 << (sec & 7))) != 0);
+    bitmap[sec >> 3] &= ~(1 << (sec & 7));
+    ++free_count;
+  }
+  
+  /** the number of free sectors */
+  public int getFreeCount ()
+  {
+    return free_count;
+  }
+  
+  private void mark (int sec)
+  {
+    bitmap[sec >> 3] |= 1 << (sec & 7);
+    --free_count;
   }
   
   /** save the content of freelist to the disk */
   public void save ()
   {
-    //TODO implement this
+    // sizing the file first, so the bitmap written includes its own sectors
+    if (inode.sectors() * Disk.SectorSize < size)
+      Lib.assertTrue(inode.setFileSize(size));
+    write(0, bitmap, 0, size);
+    inode.save();
   }
   
   /** load the content of freelist from the disk */
   public void load ()
   {
-    //TODO implement this
+    Lib.assertTrue(read(0, bitmap, 0, size) == size);
+    free_count = 0;
+    for (int sec = 0; sec < Disk.NumSectors; ++sec)
+      if ((bitmap[sec >> 3] & (1 << (sec & 7))) == 0)
+        ++free_count;
+    next = 2;
   }
 }
@@ -1,12 +1,20 @@
 package nachos.filesys;
 
-import java.util.LinkedList;
+import nachos.machine.Disk;
+import nachos.machine.Lib;
 
 /**
  * INode contains detail information about a file.
- * Most important among these is the list of sector numbers the file occupied, 
+ * Most important among these is the map from positions in the file to the sectors holding them,
  * it's necessary to find all the pieces of the file in the filesystem.
- * 
+ *
+ * The map is a list of extents, each a run of consecutive sectors (start, length).
+ * On disk, the first sector of the inode holds the header and the first DIRECT extents,
+ * then the address of a single indirect block of more extents,
+ * and the address of a double indirect block of addresses of extent blocks.
+ * In memory the extents are kept in int arrays, with the number of file sectors before the end of each,
+ * so getSector() is a binary search.
+ *
  * @author starforever
  */
 public class INode
@@ -29,9 +37,24 @@ public class INode
   /** represent a folder that are not valid */
   public static int TYPE_FOLDER_DEL = 5;
   
-  /** the reserve size (in byte) in the first sector */
+  /** the reserve size (in byte) in the first sector: size, type, links and number of extents */
   private static final int FIRST_SEC_RESERVE = 16;
   
+  /** the number of extents in the first sector, leaving room for the two indirect addresses */
+  private static final int DIRECT = (Disk.SectorSize - FIRST_SEC_RESERVE - 8) / 8;
+  
+  /** the number of extents in an extent block */
+  private static final int PER_BLOCK = Disk.SectorSize / 8;
+  
+  /** the number of extent block addresses in the double indirect block */
+  private static final int PER_DOUBLE = Disk.SectorSize / 4;
+  
+  /** the most extents a file can have */
+  private static final int MAX_EXTENTS = DIRECT + PER_BLOCK + PER_DOUBLE * PER_BLOCK;
+  
+  /** written over each sector a file grows by */
+  private static final byte[] ZERO_SECTOR = new byte[Disk.SectorSize];
+  
   /** size of the file in bytes */
   int file_size;
   
@@ -44,14 +67,18 @@ public class INode
   /** the number of links on the file */
   int link_count;
   
-  /** maintain all the sector numbers this file used in order */
-  private LinkedList<Integer> sec_addr;
+  /** the extents in file order: first sector, length, and the number of file sectors up to the end of each */
+  private int[] ext_start, ext_len, ext_end;
+  
+  /** the number of extents */
+  private int ext_count;
   
   /** the first address */
   private int addr;
   
-  /** the extended address */
-  private LinkedList<Integer> addr_ext;
+  /** the single and double indirect blocks, and the extent blocks under the double one, or -1 */
+  private int indirect, double_indirect;
+  private int[] indirect_blocks;
   
   public INode (int addr)
   {
@@ -59,39 +86,289 @@ public class INode
     file_type = TYPE_FILE;
     use_count = 0;
     link_count = 0;
-    sec_addr = new LinkedList<Integer>();
     this.addr = addr;
-    addr_ext = new LinkedList<Integer>();
+    ext_start = new int[4];
+    ext_len = new int[4];
+    ext_end = new int[4];
+    ext_count = 0;
+    indirect = double_indirect = -1;
+    indirect_blocks = new int[PER_DOUBLE];
+    for (int i = 0; i < PER_DOUBLE; ++i)
+      indirect_blocks[i] = -1;
   }
   
-  /** get the sector number of a position in the file  */
+  /** get the sector number of a position in the file, or -1 if it is past the sectors of the file */
   public int getSector (int pos)
   {
-    //TODO implement this
-    return 0;
+    int sec = pos / Disk.SectorSize;
+    if (pos < 0 || ext_count == 0 || sec >= ext_end[ext_count - 1])
+      return -1;
+    int low = 0, high = ext_count - 1;
+    while (low < high)
+    {
+      int mid = (low + high) >>> 1;
+      if (ext_end[mid] <= sec)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return ext_start[low] + sec - (ext_end[low] - ext_len[low]);
   }
   
-  /** change the file size and adjust the content in the inode accordingly */
-  public void setFileSize (int size)
+  /**
+   * change the file size and adjust the content in the inode accordingly.
+   * New sectors are taken right after the last one where they are free, so files stay contiguous,
+   * and are zeroed in the cache, as is the rest of the last sector when the file grows,
+   * so that nothing left on them (by a freed file, or before a truncation) can be read back.
+   *
+   * @return false if the disk is full or the file would have too many extents
+   */
+  public boolean setFileSize (int size)
   {
-    //TODO implement this
+    return setFileSize(size, 0, 0);
+  }
+  
+  /**
+   * change the file size, as setFileSize(size) does, for a write of the bytes from start to end:
+   * new sectors that write covers entirely are left alone, rather than zeroed and overwritten
+   */
+  public boolean setFileSize (int size, int start, int end)
+  {
+    Lib.assertTrue(size >= 0);
+    FreeList free_list = FilesysKernel.realFileSystem.getFreeList();
+    int want = Lib.divRoundUp(size, Disk.SectorSize);
+    int have = sectors();
+    int tail = file_size % Disk.SectorSize;
+    if (size > file_size && tail > 0)
+      FilesysKernel.bufferCache.write(getSector(file_size), tail, ZERO_SECTOR, 0, Disk.SectorSize - tail);
+    while (have < want)
+    {
+      int goal = ext_count == 0 ? addr + 1 : ext_start[ext_count - 1] + ext_len[ext_count - 1];
+      int sec = free_list.allocate(goal);
+      if (sec == -1 || (sec != goal && (ext_count == MAX_EXTENTS || !allocateBlocks(ext_count + 1))))
+      {
+        if (sec != -1)
+          free_list.deallocate(sec);
+        truncate(Lib.divRoundUp(file_size, Disk.SectorSize));
+        return false;
+      }
+      if (ext_count > 0 && sec == goal)
+      {
+        ext_len[ext_count - 1]++;
+        ext_end[ext_count - 1]++;
+      }
+      else
+        append(sec, 1);
+      if (have * Disk.SectorSize < start || (have + 1) * Disk.SectorSize > end)
+        FilesysKernel.bufferCache.write(sec, 0, ZERO_SECTOR, 0, Disk.SectorSize);
+      ++have;
+    }
+    truncate(want);
+    file_size = size;
+    return true;
   }
   
   /** free the disk space occupied by the file (including inode) */
   public void free ()
   {
-    //TODO implement this
+    truncate(0);
+    file_size = 0;
+    freeBlocks(0);
+    FilesysKernel.bufferCache.discard(addr);
+    FilesysKernel.realFileSystem.getFreeList().deallocate(addr);
   }
   
   /** load inode content from the disk */
   public void load ()
   {
-    //TODO implement this
+    byte[] block = new byte[Disk.SectorSize];
+    FilesysKernel.bufferCache.read(addr, 0, block, 0, Disk.SectorSize);
+    file_size = Disk.intInt(block, 0);
+    file_type = Disk.intInt(block, 4);
+    link_count = Disk.intInt(block, 8);
+    int count = Disk.intInt(block, 12);
+    Lib.assertTrue(count >= 0 && count <= MAX_EXTENTS);
+    indirect = Disk.intInt(block, Disk.SectorSize - 8);
+    double_indirect = Disk.intInt(block, Disk.SectorSize - 4);
+    ext_count = 0;
+    loadExtents(block, FIRST_SEC_RESERVE, Math.min(count, DIRECT));
+    count -= Math.min(count, DIRECT);
+    if (count > 0)
+    {
+      FilesysKernel.bufferCache.read(indirect, 0, block, 0, Disk.SectorSize);
+      loadExtents(block, 0, Math.min(count, PER_BLOCK));
+      count -= Math.min(count, PER_BLOCK);
+    }
+    if (count > 0)
+    {
+      byte[] blocks = new byte[Disk.SectorSize];
+      FilesysKernel.bufferCache.read(double_indirect, 0, blocks, 0, Disk.SectorSize);
+      for (int i = 0; i < PER_DOUBLE; ++i)
+        indirect_blocks[i] = Disk.intInt(blocks, i * 4);
+      for (int i = 0; count > 0; ++i)
+      {
+        FilesysKernel.bufferCache.read(indirect_blocks[i], 0, block, 0, Disk.SectorSize);
+        loadExtents(block, 0, Math.min(count, PER_BLOCK));
+        count -= Math.min(count, PER_BLOCK);
+      }
+    }
   }
   
-  /** save inode content to the disk */
+  /** save inode content to the disk, allocating or freeing extent blocks as the number of extents needs */
   public void save ()
   {
-    //TODO implement this
+    int count = ext_count;
+    Lib.assertTrue(allocateBlocks(count));
+    freeBlocks(count);
+
+    byte[] block = new byte[Disk.SectorSize];
+    Disk.extInt(file_size, block, 0);
+    Disk.extInt(file_type, block, 4);
+    Disk.extInt(link_count, block, 8);
+    Disk.extInt(count, block, 12);
+    Disk.extInt(indirect, block, Disk.SectorSize - 8);
+    Disk.extInt(double_indirect, block, Disk.SectorSize - 4);
+    int next = saveExtents(block, FIRST_SEC_RESERVE, 0, DIRECT);
+    FilesysKernel.bufferCache.write(addr, 0, block, 0, Disk.SectorSize);
+    if (next < count)
+    {
+      block = new byte[Disk.SectorSize];
+      next = saveExtents(block, 0, next, PER_BLOCK);
+      FilesysKernel.bufferCache.write(indirect, 0, block, 0, Disk.SectorSize);
+    }
+    if (next < count)
+    {
+      byte[] blocks = new byte[Disk.SectorSize];
+      for (int i = 0; next < count; ++i)
+      {
+        block = new byte[Disk.SectorSize];
+        next = saveExtents(block, 0, next, PER_BLOCK);
+        FilesysKernel.bufferCache.write(indirect_blocks[i], 0, block, 0, Disk.SectorSize);
+      }
+      for (int i = 0; i < PER_DOUBLE; ++i)
+        Disk.extInt(indirect_blocks[i], blocks, i * 4);
+      FilesysKernel.bufferCache.write(double_indirect, 0, blocks, 0, Disk.SectorSize);
+    }
+  }
+  
+  /** the number of sectors the file occupies (not counting the inode and extent blocks) */
+  public int sectors ()
+  {
+    return ext_count == 0 ? 0 : ext_end[ext_count - 1];
+  }
+  
+  /** the number of extents the file is in */
+  public int extents ()
+  {
+    return ext_count;
+  }
+  
+  /** add the extent (start, len) at the end */
+  private void append (int start, int len)
+  {
+    if (ext_count == ext_start.length)
+    {
+      int capacity = Math.min(ext_count * 2, MAX_EXTENTS);
+      ext_start = copyOf(ext_start, capacity);
+      ext_len = copyOf(ext_len, capacity);
+      ext_end = copyOf(ext_end, capacity);
+    }
+    ext_start[ext_count] = start;
+    ext_len[ext_count] = len;
+    ext_end[ext_count] = sectors() + len;
+    ++ext_count;
+  }
+  
+  private static int[] copyOf (int[] a, int length)
+  {
+    int[] b = new int[length];
+    System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+    return b;
+  }
+  
+  /** free the sectors of the file past the first want */
+  private void truncate (int want)
+  {
+    FreeList free_list = FilesysKernel.realFileSystem.getFreeList();
+    while (sectors() > want)
+    {
+      int last = ext_count - 1;
+      int sec = ext_start[last] + ext_len[last] - 1;
+      FilesysKernel.bufferCache.discard(sec);
+      free_list.deallocate(sec);
+      ext_end[last]--;
+      if (--ext_len[last] == 0)
+        --ext_count;
+    }
+    file_size = Math.min(file_size, want * Disk.SectorSize);
+  }
+  
+  /**
+   * allocate the extent blocks needed to hold count extents, which setFileSize() does before adding each extent.
+   * they are taken from the end of the disk, so that they do not land on the sector the file grows into next
+   */
+  private boolean allocateBlocks (int count)
+  {
+    FreeList free_list = FilesysKernel.realFileSystem.getFreeList();
+    if (count > DIRECT && indirect == -1)
+    {
+      if ((indirect = free_list.allocateLast()) == -1)
+        return false;
+    }
+    if (count > DIRECT + PER_BLOCK)
+    {
+      if (double_indirect == -1 && (double_indirect = free_list.allocateLast()) == -1)
+        return false;
+      int blocks = Lib.divRoundUp(count - DIRECT - PER_BLOCK, PER_BLOCK);
+      for (int i = 0; i < blocks; ++i)
+        if (indirect_blocks[i] == -1 && (indirect_blocks[i] = free_list.allocateLast()) == -1)
+          return false;
+    }
+    return true;
+  }
+  
+  /** free the extent blocks not needed to hold count extents */
+  private void freeBlocks (int count)
+  {
+    FreeList free_list = FilesysKernel.realFileSystem.getFreeList();
+    int blocks = count <= DIRECT + PER_BLOCK ? 0 : Lib.divRoundUp(count - DIRECT - PER_BLOCK, PER_BLOCK);
+    for (int i = blocks; i < PER_DOUBLE; ++i)
+      if (indirect_blocks[i] != -1)
+      {
+        FilesysKernel.bufferCache.discard(indirect_blocks[i]);
+        free_list.deallocate(indirect_blocks[i]);
+        indirect_blocks[i] = -1;
+      }
+    if (blocks == 0 && double_indirect != -1)
+    {
+      FilesysKernel.bufferCache.discard(double_indirect);
+      free_list.deallocate(double_indirect);
+      double_indirect = -1;
+    }
+    if (count <= DIRECT && indirect != -1)
+    {
+      FilesysKernel.bufferCache.discard(indirect);
+      free_list.deallocate(indirect);
+      indirect = -1;
+    }
+  }
+  
+  /** append the count extents stored in block from offset */
+  private void loadExtents (byte[] block, int offset, int count)
+  {
+    for (int i = 0; i < count; ++i)
+      append(Disk.intInt(block, offset + i * 8), Disk.intInt(block, offset + i * 8 + 4));
+  }
+  
+  /** store up to max extents from the first-th into block from offset, and return the next extent to store */
+  private int saveExtents (byte[] block, int offset, int first, int max)
+  {
+    int i;
+    for (i = first; i < ext_count && i < first + max; ++i)
+    {
+      Disk.extInt(ext_start[i], block, offset + (i - first) * 8);
+      Disk.extInt(ext_len[i], block, offset + (i - first) * 8 + 4);
+    }
+    return i;
   }
 }
@@ -1,6 +1,7 @@
 package nachos.filesys;
 
 import java.util.LinkedList;
+import nachos.machine.Disk;
 import nachos.machine.FileSystem;
 import nachos.machine.Machine;
 import nachos.machine.OpenFile;
@@ -35,7 +36,17 @@ public class RealFileSystem implements FileSystem
   {
     if (format)
     {
-      //TODO implement this
+      INode inode_free_list = new INode(FreeList.STATIC_ADDR);
+      inode_free_list.file_type = INode.TYPE_SYSTEM;
+      free_list = new FreeList(inode_free_list);
+      free_list.init();
+      
+      INode inode_root_folder = new INode(Folder.STATIC_ADDR);
+      inode_root_folder.file_type = INode.TYPE_FOLDER;
+      inode_root_folder.save();
+      root_folder = new Folder(inode_root_folder);
+      
+      free_list.save();
     }
     else
     {
@@ -150,8 +161,7 @@ public class RealFileSystem implements FileSystem
   
   public int getFreeSize()
   {
-    //TODO implement this
-    return 0;
+    return free_list.getFreeCount() * Disk.SectorSize;
   }
   
   public int getSwapFileSectors()
@@ -42,7 +42,11 @@ package nachos.machine;
 // quickly, because its contents are in the track buffer.  Most
 // disks these days now come with a track buffer.
 //
-// The track buffer simulation can be disabled by compiling with -DNOTRACKBUF
+// The track buffer can hold the last Disk.trackBuffer tracks visited
+// (0 by default, which disables it; 1 is the classic model), replaced LRU
+// or FIFO as set by Disk.trackBufferPolicy. Reads from the buffer are
+// also served from memory, the whole track having been read from the UNIX
+// file at once.
 
 import java.io.*;
 
@@ -57,9 +61,6 @@ import nachos.security.Privilege;
 
 public class Disk {
 
-	// track buffer support
-	private static final boolean NOTRACKBUF = true;
-
 	// number of bytes per disk sector
 	public static final int SectorSize = 128 * 4;
 
@@ -93,6 +94,24 @@ public class Disk {
 
 	private int rotation; // timeToSeek()
 
+	// the track buffer, one segment per track it can hold: the track, the
+	// sector the head was over when it started loading it, how many sectors
+	// were loaded when the head left it, when it was last loaded (or used,
+	// for LRU), and its contents
+	private int bufferTracks;
+
+	private boolean bufferLRU;
+
+	private int[] segTrack, segStart, segLoaded;
+
+	private long[] segStamp;
+
+	private byte[][] segData;
+
+	private long clock;
+
+	private int currentSeg; // the segment of the head's track, or -1
+
 	// We put this at the front of the UNIX file representing the
 	// disk, to make it less likely we will accidentally treat a useful file
 	// as a disk (which would probably trash the file's contents).
@@ -174,72 +193,131 @@ public class Disk {
 
 		}
 		active = false;
+
+		bufferTracks = Config.getInteger("Disk.trackBuffer", 0);
+		String policy = Config.getString("Disk.trackBufferPolicy", "lru");
+		Lib.assertTrue(bufferTracks >= 0 && bufferTracks <= NumTracks);
+		Lib.assertTrue(policy.equalsIgnoreCase("lru")
+				|| policy.equalsIgnoreCase("fifo"), "unknown Disk.trackBufferPolicy "
+				+ policy);
+		bufferLRU = policy.equalsIgnoreCase("lru");
+		segTrack = new int[bufferTracks];
+		segStart = new int[bufferTracks];
+		segLoaded = new int[bufferTracks];
+		segStamp = new long[bufferTracks];
+		segData = new byte[bufferTracks][];
+		for (int i = 0; i < bufferTracks; i++)
+			segTrack[i] = -1;
+		currentSeg = -1;
+		enterTrack(0);
 	}
 
 	// ----------------------------------------------------------------------
 	// readRequest/writeRequest
 	// These routines send a request to the disk and return immediately.
 	//
-	// Simulate a request to read/write a single disk sector
+	// Simulate a request to read/write a single disk sector, or a run of
+	// "count" consecutive sectors.
 	// Do the read/write immediately to the UNIX file
 	// Set up an interrupt handler to be called later,
 	// that will notify the caller when the simulator says
 	// the operation has completed.
 	//
-	// Note that a disk only allows an entire sector to be read/written,
+	// Note that a disk only allows entire sectors to be read/written,
 	// not part of a sector.
 	//
-	// "sectorNumber" -- the disk sector to read/write
+	// A run costs one seek and rotational delay to its first sector, and
+	// then the transfer time of each sector, plus a track-to-track seek
+	// wherever it crosses onto the next track; and it is moved to or from
+	// the UNIX file in one operation.
+	//
+	// A read whose sectors are all in the track buffer costs only their
+	// transfer time, and does not move the head.
+	//
+	// "sectorNumber" -- the (first) disk sector to read/write
 	// "data" -- the bytes to be written, the buffer to hold the incoming bytes
 	// ----------------------------------------------------------------------
 
 	public void readRequest(int sectorNumber, byte[] data, int index) {
+		readRequest(sectorNumber, 1, data, index);
+	}
 
-		int ticks = computeLatency(sectorNumber, false);
+	public void writeRequest(int sectorNumber, byte[] data, int index) {
+		writeRequest(sectorNumber, 1, data, index);
+	}
+
+	public void readRequest(int sectorNumber, int count, byte[] data,
+			int index) {
 
 		Lib.assertTrue(!active); // only one request at a time
-		Lib.assertTrue((sectorNumber >= 0) && (sectorNumber < NumSectors));
+		Lib.assertTrue((sectorNumber >= 0) && (count > 0)
+				&& (sectorNumber + count <= NumSectors));
 
-		Lib.debug('d', "Reading from sector " + sectorNumber);
+		boolean hit = buffered(sectorNumber, count);
+		int ticks = computeLatency(sectorNumber, count, false);
 
-		try {
-			file.seek(SectorSize * sectorNumber + MagicSize);
-			file.read(data, index, SectorSize);
-		} catch (IOException e) {
-			Lib.assertTrue(false, "Can't read Disk file!");
+		Lib.debug('d', "Reading " + count + " from sector " + sectorNumber);
+
+		if (hit)
+			privilege.stats.numTrackBufferHits += count;
+		else
+			updateLast(sectorNumber, count);
+
+		int track = sectorNumber / SectorsPerTrack;
+		int seg = findSegment(track);
+		if (seg != -1 && (sectorNumber + count - 1) / SectorsPerTrack == track) {
+			System.arraycopy(segData[seg], (sectorNumber % SectorsPerTrack)
+					* SectorSize, data, index, SectorSize * count);
+			if (bufferLRU)
+				segStamp[seg] = ++clock;
+		} else {
+			try {
+				file.seek(SectorSize * sectorNumber + MagicSize);
+				file.readFully(data, index, SectorSize * count);
+			} catch (IOException e) {
+				Lib.assertTrue(false, "Can't read Disk file!");
+			}
 		}
 
 		// if (Debug.isEnabled('d'))
 		// printSector(false, sectorNumber, data);
 
 		active = true;
-		updateLast(sectorNumber);
-		privilege.stats.numDiskReads++;
+		privilege.stats.numDiskReads += count;
 		privilege.interrupt.schedule((long) ticks, "disk", dskHandler);
 	}
 
-	public void writeRequest(int sectorNumber, byte[] data, int index) {
+	public void writeRequest(int sectorNumber, int count, byte[] data,
+			int index) {
 
-		int ticks = computeLatency(sectorNumber, true);
+		int ticks = computeLatency(sectorNumber, count, true);
 
 		Lib.assertTrue(!active);
-		Lib.assertTrue((sectorNumber >= 0) && (sectorNumber < NumSectors));
+		Lib.assertTrue((sectorNumber >= 0) && (count > 0)
+				&& (sectorNumber + count <= NumSectors));
 
-		Lib.debug('d', "Writing to sector " + sectorNumber);
+		Lib.debug('d', "Writing " + count + " to sector " + sectorNumber);
 
 		try {
 			file.seek(SectorSize * sectorNumber + MagicSize);
-			file.write(data, index, SectorSize);
+			file.write(data, index, SectorSize * count);
 		} catch (IOException e) {
 			Lib.assertTrue(false, "Can't write Disk file!");
 		}
+		for (int i = 0; i < count; i++) { // keep the track buffer current
+			int seg = findSegment((sectorNumber + i) / SectorsPerTrack);
+			if (seg != -1)
+				System.arraycopy(data, index + i * SectorSize, segData[seg],
+						((sectorNumber + i) % SectorsPerTrack) * SectorSize,
+						SectorSize);
+		}
 
 		// if (Debug.isEnabled('d'))
 		// printSector(true, sectorNumber, data);
 
 		active = true;
-		updateLast(sectorNumber);
-		privilege.stats.numDiskWrites++;
+		updateLast(sectorNumber, count);
+		privilege.stats.numDiskWrites += count;
 		privilege.interrupt.schedule(ticks, "Disk", dskHandler);
 	}
 
@@ -271,28 +349,21 @@ public class Disk {
 	// The disk also has a "track buffer"; the disk continuously reads
 	// the contents of the current disk track into the buffer. This allows
 	// read requests to the current track to be satisfied more quickly.
-	// The contents of the track buffer are discarded after every seek to
-	// a new track.
+	// The buffer keeps what it loaded of the last few tracks the head
+	// visited, and a track's contents are loaded afresh each time the head
+	// seeks back to it, unless the whole track was loaded before.
 	// ----------------------------------------------------------------------
 
 	public int computeLatency(int newSector, boolean writing) {
+		if (!writing && buffered(newSector, 1)) {
+			Lib.debug('d', "Request latency = " + Stats.RotationTime);
+			return Stats.RotationTime; // time to transfer sector from the
+			// track buffer
+		}
+
 		timeToSeek(newSector); // computes seek and rotation
 		int timeAfter = (int) (privilege.stats.totalTicks + seek + rotation);
 
-		if (NOTRACKBUF == false) {
-			// turn this on if you don't want the track buffer stuff
-
-			// check if track buffer applies
-			if ((writing == false)
-					&& (seek == 0)
-					&& (((timeAfter - bufferInit) / Stats.RotationTime) > moduloDiff(
-							newSector, bufferInit / Stats.RotationTime))) {
-				Lib.debug('d', "Request latency = " + Stats.RotationTime);
-				return Stats.RotationTime; // time to transfer sector from the
-				// track buffer
-			}
-		}
-
 		rotation += moduloDiff(newSector, timeAfter / Stats.RotationTime)
 				* Stats.RotationTime;
 
@@ -301,6 +372,23 @@ public class Disk {
 		return (seek + rotation + Stats.RotationTime);
 	}
 
+	// ----------------------------------------------------------------------
+	// computeLatency()
+	// Return how long it will take to read/write the "count" sectors
+	// starting at newSector: the latency of the first, then one sector
+	// time for each of the others, and a track-to-track seek for each
+	// track boundary crossed.
+	// ----------------------------------------------------------------------
+
+	public int computeLatency(int newSector, int count, boolean writing) {
+		if (!writing && buffered(newSector, count))
+			return count * Stats.RotationTime;
+		int tracks = (newSector + count - 1) / SectorsPerTrack - newSector
+				/ SectorsPerTrack;
+		return computeLatency(newSector, writing) + (count - 1)
+				* Stats.RotationTime + tracks * Stats.SeekTime;
+	}
+
 	// ----------------------------------------------------------------------
 	// timeToSeek()
 	// computes how long it will take to position the disk head over the correct
@@ -348,17 +436,111 @@ public class Disk {
 	// what is in the track buffer.
 	// ----------------------------------------------------------------------
 
-	private void updateLast(int newSector) {
+	private void updateLast(int newSector, int count) {
 
 		timeToSeek(newSector); // computes seek and rotation
 
-		if (seek != 0)
-			bufferInit = (int) (privilege.stats.totalTicks + seek + rotation);
-		lastSector = newSector;
+		int lastTrack = (newSector + count - 1) / SectorsPerTrack;
+		if (seek != 0 || lastTrack != newSector / SectorsPerTrack) {
+			leaveTrack();
+			if (lastTrack == newSector / SectorsPerTrack)
+				bufferInit = (int) (privilege.stats.totalTicks + seek + rotation);
+			else {
+				// the run went on to another track; its buffer starts there
+				int first = lastTrack * SectorsPerTrack;
+				bufferInit = (int) (privilege.stats.totalTicks
+						+ computeLatency(newSector, first - newSector, true) + Stats.SeekTime);
+			}
+			enterTrack(lastTrack);
+		}
+		lastSector = newSector + count - 1;
 		Lib.debug('d', "Updating last sector = " + lastSector + ", "
 				+ bufferInit);
 	}
 
+	// ----------------------------------------------------------------------
+	// buffered
+	// Return whether the "count" sectors starting at newSector are all in
+	// the track buffer by the time the head reaches the next sector
+	// boundary.
+	// ----------------------------------------------------------------------
+
+	private boolean buffered(int newSector, int count) {
+		int track = newSector / SectorsPerTrack;
+		int seg = findSegment(track);
+		if (seg == -1 || (newSector + count - 1) / SectorsPerTrack != track)
+			return false;
+		int loaded = segLoaded[seg];
+		if (seg == currentSeg && loaded < SectorsPerTrack) {
+			int now = (int) privilege.stats.totalTicks;
+			now += (Stats.RotationTime - now % Stats.RotationTime)
+					% Stats.RotationTime;
+			loaded = Math.min(SectorsPerTrack, Math.max(0, (now - bufferInit)
+					/ Stats.RotationTime));
+		}
+		for (int i = 0; i < count; i++)
+			if (moduloDiff(newSector + i, segStart[seg]) >= loaded)
+				return false;
+		return true;
+	}
+
+	// ----------------------------------------------------------------------
+	// findSegment
+	// Return the track buffer segment holding "track", or -1.
+	// ----------------------------------------------------------------------
+
+	private int findSegment(int track) {
+		for (int i = 0; i < bufferTracks; i++)
+			if (segTrack[i] == track)
+				return i;
+		return -1;
+	}
+
+	// ----------------------------------------------------------------------
+	// leaveTrack/enterTrack
+	// Record how much of its track the current segment loaded before the
+	// head seeks away now, and start loading the track the head arrives
+	// on at bufferInit, replacing the least recently loaded (or used)
+	// segment if it is not buffered already. The whole track is read
+	// from the UNIX file, whatever part of it counts as loaded.
+	// ----------------------------------------------------------------------
+
+	private void leaveTrack() {
+		if (currentSeg != -1 && segLoaded[currentSeg] < SectorsPerTrack)
+			segLoaded[currentSeg] = Math.min(SectorsPerTrack, Math.max(0,
+					((int) privilege.stats.totalTicks - bufferInit)
+							/ Stats.RotationTime));
+		currentSeg = -1;
+	}
+
+	private void enterTrack(int track) {
+		if (bufferTracks == 0)
+			return;
+		int seg = findSegment(track);
+		if (seg == -1) {
+			seg = 0;
+			for (int i = 1; i < bufferTracks; i++)
+				if (segStamp[i] < segStamp[seg])
+					seg = i;
+			if (segData[seg] == null)
+				segData[seg] = new byte[SectorsPerTrack * SectorSize];
+			try {
+				file.seek(SectorSize * track * SectorsPerTrack + MagicSize);
+				file.readFully(segData[seg]);
+			} catch (IOException e) {
+				Lib.assertTrue(false, "Can't read Disk file!");
+			}
+			segTrack[seg] = track;
+			segLoaded[seg] = 0;
+		}
+		if (segLoaded[seg] < SectorsPerTrack) {
+			segStart[seg] = (bufferInit / Stats.RotationTime) % SectorsPerTrack;
+			segLoaded[seg] = 0;
+		}
+		segStamp[seg] = ++clock;
+		currentSeg = seg;
+	}
+
 	// ----------------------------------------------------------------------
 	// printSector()
 	// Dump the data in a disk read/write request, for debugging.
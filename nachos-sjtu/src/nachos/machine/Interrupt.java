@@ -2,8 +2,7 @@
 
 package nachos.machine;
 
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.Arrays;
 
 import nachos.security.Privilege;
 
@@ -52,7 +51,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new PendingQueue();
 	}
 
 	/**
@@ -125,12 +124,11 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		pending.add(time, type, handler);
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -152,6 +150,29 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private int userTicksUntilDue() {
+		if (Lib.test(dbgInt))
+			return 0;
+
+		if (pending.isEmpty())
+			return Integer.MAX_VALUE;
+
+		long ticks = (pending.firstTime() - privilege.stats.totalTicks - 1)
+				/ Stats.UserTick;
+
+		return (int) Math.max(0, Math.min(ticks, Integer.MAX_VALUE));
+	}
+
+	private void advanceUserTicks(int count) {
+		Stats stats = privilege.stats;
+
+		stats.userTicks += (long) count * Stats.UserTick;
+		stats.totalTicks += (long) count * Stats.UserTick;
+
+		Lib.assertTrue(pending.isEmpty()
+				|| pending.firstTime() > stats.totalTicks);
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -163,24 +184,22 @@ public final class Interrupt {
 		if (pending.isEmpty())
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending.firstTime() > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+		while (!pending.isEmpty() && pending.firstTime() <= time) {
+			String type = pending.firstType();
+			Runnable handler = pending.firstHandler();
+			pending.removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -191,44 +210,135 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator<PendingInterrupt> i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
-		}
+		pending.print();
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable<PendingInterrupt> {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	/**
+	 * A binary min-heap of pending interrupts ordered by (time, id), where id
+	 * is the order in which the interrupts were scheduled. Entries are stored
+	 * in parallel arrays that grow as needed, so scheduling an interrupt does
+	 * not allocate once the heap has reached its working size.
+	 */
+	private class PendingQueue {
+		boolean isEmpty() {
+			return size == 0;
 		}
 
-		public int compareTo(PendingInterrupt o) {
-			PendingInterrupt toOccur = o;
+		long firstTime() {
+			Lib.assertTrue(size > 0);
+			return times[0];
+		}
 
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
+		String firstType() {
+			Lib.assertTrue(size > 0);
+			return types[0];
 		}
 
-		long time;
-		String type;
-		Runnable handler;
+		Runnable firstHandler() {
+			Lib.assertTrue(size > 0);
+			return handlers[0];
+		}
 
-		private long id;
+		void add(long time, String type, Runnable handler) {
+			if (size == times.length) {
+				int capacity = size * 2;
+				times = Arrays.copyOf(times, capacity);
+				ids = Arrays.copyOf(ids, capacity);
+				types = Arrays.copyOf(types, capacity);
+				handlers = Arrays.copyOf(handlers, capacity);
+			}
+
+			long id = numPendingInterruptsCreated++;
+
+			// sift up from the new leaf
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!before(time, id, times[parent], ids[parent]))
+					break;
+				move(parent, i);
+				i = parent;
+			}
+			set(i, time, id, type, handler);
+		}
+
+		void removeFirst() {
+			Lib.assertTrue(size > 0);
+
+			int last = --size;
+			long time = times[last], id = ids[last];
+			String type = types[last];
+			Runnable handler = handlers[last];
+			types[last] = null;
+			handlers[last] = null;
+
+			if (last == 0)
+				return;
+
+			// sift the old last leaf down from the root
+			int i = 0;
+			while (true) {
+				int child = i * 2 + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size
+						&& before(times[child + 1], ids[child + 1],
+								times[child], ids[child]))
+					child++;
+				if (!before(times[child], ids[child], time, id))
+					break;
+				move(child, i);
+				i = child;
+			}
+			set(i, time, id, type, handler);
+		}
+
+		void print() {
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++)
+				order[i] = i;
+
+			Arrays.sort(order, new java.util.Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					if (before(times[a], ids[a], times[b], ids[b]))
+						return -1;
+					else if (before(times[b], ids[b], times[a], ids[a]))
+						return 1;
+					else
+						return 0;
+				}
+			});
+
+			for (int i = 0; i < size; i++)
+				System.out.println("  " + types[order[i]] + ", scheduled at "
+						+ times[order[i]]);
+		}
+
+		private boolean before(long time1, long id1, long time2, long id2) {
+			return time1 < time2 || (time1 == time2 && id1 < id2);
+		}
+
+		private void move(int from, int to) {
+			set(to, times[from], ids[from], types[from], handlers[from]);
+		}
+
+		private void set(int i, long time, long id, String type,
+				Runnable handler) {
+			times[i] = time;
+			ids[i] = id;
+			types[i] = type;
+			handlers[i] = handler;
+		}
+
+		private long[] times = new long[initialCapacity];
+		private long[] ids = new long[initialCapacity];
+		private String[] types = new String[initialCapacity];
+		private Runnable[] handlers = new Runnable[initialCapacity];
+		private int size = 0;
+
+		private static final int initialCapacity = 16;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -236,7 +346,7 @@ public final class Interrupt {
 	private Privilege privilege;
 
 	private boolean enabled;
-	private TreeSet<PendingInterrupt> pending;
+	private PendingQueue pending;
 
 	private static final char dbgInt = 'i';
 
@@ -248,5 +358,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public int userTicksUntilDue() {
+			return Interrupt.this.userTicksUntilDue();
+		}
+
+		public void advanceUserTicks(int count) {
+			Interrupt.this.advanceUserTicks(count);
+		}
 	}
 }
@@ -150,6 +150,98 @@ public class OpenFile {
 		return -1;
 	}
 
+	/**
+	 * Read this file starting at the specified position into several windows
+	 * of one buffer in turn, as a single read of their total length would,
+	 * and return the number of bytes successfully read. This lets a read go
+	 * straight into the physical pages behind a user buffer. By default each
+	 * window is read separately.
+	 * 
+	 * @param pos
+	 *            the offset in the file at which to start reading.
+	 * @param buf
+	 *            the buffer to store the bytes in.
+	 * @param offsets
+	 *            the offset in the buffer of each window.
+	 * @param lengths
+	 *            the length of each window.
+	 * @param count
+	 *            the number of windows.
+	 * @return the actual number of bytes successfully read, or -1 on failure.
+	 */
+	public int read(int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+		int amount = 0;
+		for (int i = 0; i < count; i++) {
+			int read = read(pos + amount, buf, offsets[i], lengths[i]);
+			if (read == -1)
+				return (amount == 0) ? -1 : amount;
+			amount += read;
+			if (read < lengths[i])
+				break;
+		}
+		return amount;
+	}
+
+	/**
+	 * Write this file starting at the specified position from several windows
+	 * of one buffer in turn, as a single write of their total length would.
+	 * By default each window is written separately.
+	 * 
+	 * @return the actual number of bytes successfully written, or -1 on
+	 *         failure.
+	 * @see #read(int,byte[],int[],int[],int)
+	 */
+	public int write(int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+		int amount = 0;
+		for (int i = 0; i < count; i++) {
+			int written = write(pos + amount, buf, offsets[i], lengths[i]);
+			if (written == -1)
+				return (amount == 0) ? -1 : amount;
+			amount += written;
+			if (written < lengths[i])
+				break;
+		}
+		return amount;
+	}
+
+	/**
+	 * Read this file starting at the current file pointer into several
+	 * windows of one buffer in turn, advancing the file pointer.
+	 * 
+	 * @see #read(int,byte[],int[],int[],int)
+	 */
+	public int read(byte[] buf, int[] offsets, int[] lengths, int count) {
+		int amount = 0;
+		for (int i = 0; i < count; i++) {
+			int read = read(buf, offsets[i], lengths[i]);
+			if (read == -1)
+				return (amount == 0) ? -1 : amount;
+			amount += read;
+			if (read < lengths[i])
+				break;
+		}
+		return amount;
+	}
+
+	/**
+	 * Write this file starting at the current file pointer from several
+	 * windows of one buffer in turn, advancing the file pointer.
+	 * 
+	 * @see #write(int,byte[],int[],int[],int)
+	 */
+	public int write(byte[] buf, int[] offsets, int[] lengths, int count) {
+		int amount = 0;
+		for (int i = 0; i < count; i++) {
+			int written = write(buf, offsets[i], lengths[i]);
+			if (written == -1)
+				return (amount == 0) ? -1 : amount;
+			amount += written;
+			if (written < lengths[i])
+				break;
+		}
+		return amount;
+	}
+
 	private FileSystem fileSystem;
 	private String name;
 }
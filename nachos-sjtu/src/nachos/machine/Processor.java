@@ -42,15 +42,41 @@ public final class Processor {
 
 		this.numPhysPages = numPhysPages;
 
+		batchTicks = Config.getBoolean("Processor.batchTicks", true);
+
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodeCache = new Decoded[numPhysPages][];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", 4);
+			tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+			Lib.assertTrue(tlbSize % tlbWays == 0,
+					"TLB size must be a multiple of its associativity");
+			// an instruction may need its own page and a data page at once
+			Lib.assertTrue(tlbWays >= 2, "TLB must be at least 2-way");
+			tlbSets = tlbSize / tlbWays;
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			tlbBuckets = new int[Integer.highestOneBit(tlbSize) * 2];
+			tlbChain = new int[tlbSize];
+			for (int i = 0; i < tlbBuckets.length; i++)
+				tlbBuckets[i] = -1;
+
+			privilege.stats.numTLBSetHits = new int[tlbSets];
+			privilege.stats.numTLBSetMisses = new int[tlbSets];
+
+			microTLBReadVPN = new int[microTLBSize];
+			microTLBReadPPN = new int[microTLBSize];
+			microTLBWriteVPN = new int[microTLBSize];
+			microTLBWritePPN = new int[microTLBSize];
+			for (int i = 0; i < microTLBSize; i++)
+				microTLBReadVPN[i] = microTLBWriteVPN[i] = -1;
 		} else {
 			translations = null;
 		}
@@ -94,12 +120,31 @@ public final class Processor {
 		Instruction inst = new Instruction();
 
 		while (true) {
+			// instructions whose tick cannot make an interrupt due are run
+			// back to back and charged in one go; the last one of a batch
+			// (or the one that raises an exception) ticks normally
+			int batch = batchTicks ? privilege.interrupt.userTicksUntilDue()
+					: 0;
+			int executed = 0;
+			MipsException exception = null;
+
 			try {
+				while (executed < batch) {
+					inst.run();
+					executed++;
+				}
 				inst.run();
 			} catch (MipsException e) {
-				e.handle();
+				exception = e;
 			}
 
+			// the kernel must see up-to-date stats before handling anything
+			if (executed > 0)
+				privilege.interrupt.advanceUserTicks(executed);
+
+			if (exception != null)
+				exception.handle();
+
 			privilege.interrupt.tick(false);
 		}
 	}
@@ -191,6 +236,34 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the associativity of this processor's TLB, i.e. the number of
+	 * entries in each TLB set. Equal to <tt>getTLBSize()</tt> for a fully
+	 * associative TLB.
+	 * 
+	 * @return the number of entries in each TLB set.
+	 */
+	public int getTLBWays() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the TLB set that may hold a translation for the specified virtual
+	 * page. Set <i>s</i> consists of TLB entries <tt>s * getTLBWays()</tt>
+	 * through <tt>(s + 1) * getTLBWays() - 1</tt>.
+	 * 
+	 * @param vpn
+	 *            the virtual page number.
+	 * @return the set index for <i>vpn</i>.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		return vpn % tlbSets;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -209,8 +282,10 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * The TLB is set associative. A valid entry for virtual page <i>vpn</i>
+	 * must be placed in set <tt>getTLBSet(vpn)</tt>; within that set, the
+	 * location of an entry does not affect anything. With the default
+	 * configuration there is a single set, so the TLB is fully associative.
 	 * 
 	 * @param number
 	 *            the index into the TLB.
@@ -220,8 +295,86 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(!entry.valid || number / tlbWays == entry.vpn % tlbSets,
+				"TLB entry placed outside its set");
+
+		if (translations[number].valid) {
+			flushMicroTLB(translations[number].vpn);
+			unlinkTLBEntry(number);
+		}
+		if (entry.valid)
+			flushMicroTLB(entry.vpn);
 
 		translations[number] = new TranslationEntry(entry);
+
+		if (entry.valid)
+			linkTLBEntry(number);
+	}
+
+	/**
+	 * Add a valid TLB entry to the hash chain for its vpn. Chains are kept
+	 * sorted by entry number, so that if the kernel installs two entries for
+	 * the same page the lowest-numbered one wins, as with a linear scan.
+	 * 
+	 * @param number
+	 *            the index into the TLB.
+	 */
+	private void linkTLBEntry(int number) {
+		int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+		int prev = -1, next = tlbBuckets[bucket];
+		while (next != -1 && next < number) {
+			prev = next;
+			next = tlbChain[next];
+		}
+
+		tlbChain[number] = next;
+		if (prev == -1)
+			tlbBuckets[bucket] = number;
+		else
+			tlbChain[prev] = number;
+	}
+
+	/**
+	 * Remove a valid TLB entry from the hash chain for its vpn.
+	 * 
+	 * @param number
+	 *            the index into the TLB.
+	 */
+	private void unlinkTLBEntry(int number) {
+		int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+		if (tlbBuckets[bucket] == number) {
+			tlbBuckets[bucket] = tlbChain[number];
+			return;
+		}
+
+		for (int i = tlbBuckets[bucket]; i != -1; i = tlbChain[i]) {
+			if (tlbChain[i] == number) {
+				tlbChain[i] = tlbChain[number];
+				return;
+			}
+		}
+
+		Lib.assertNotReached("TLB entry missing from its hash chain");
+	}
+
+	/**
+	 * Drop any micro-TLB translations cached for the specified virtual page.
+	 * Must be called whenever a TLB entry for that page is replaced, since
+	 * the micro-TLB assumes the entry is still present with its used (and,
+	 * for writes, dirty) bit already set.
+	 * 
+	 * @param vpn
+	 *            the virtual page whose cached translations are stale.
+	 */
+	private void flushMicroTLB(int vpn) {
+		int slot = vpn & (microTLBSize - 1);
+
+		if (microTLBReadVPN[slot] == vpn)
+			microTLBReadVPN[slot] = -1;
+		if (microTLBWriteVPN[slot] == vpn)
+			microTLBWriteVPN[slot] = -1;
 	}
 
 	/**
@@ -320,6 +473,24 @@ public final class Processor {
 		int vpn = pageFromAddress(vaddr);
 		int offset = offsetFromAddress(vaddr);
 
+		// a micro-TLB hit means a TLB entry already passed every check below
+		// and already has its used (and, for writes, dirty) bit set
+		int slot = vpn & (microTLBSize - 1);
+		if (usingTLB) {
+			int[] cachedVPN = writing ? microTLBWriteVPN : microTLBReadVPN;
+			if (cachedVPN[slot] == vpn) {
+				privilege.stats.numTLBSetHits[vpn % tlbSets]++;
+
+				int ppn = writing ? microTLBWritePPN[slot]
+						: microTLBReadPPN[slot];
+				int paddr = (ppn * pageSize) + offset;
+
+				if (Lib.test(dbgProcessor))
+					System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+				return paddr;
+			}
+		}
+
 		TranslationEntry entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
@@ -333,16 +504,20 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB entries hashed to this vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+			int bucket = vpn & (tlbBuckets.length - 1);
+			for (int i = tlbBuckets[bucket]; i != -1; i = tlbChain[i]) {
+				if (translations[i].vpn == vpn) {
 					entry = translations[i];
 					break;
 				}
 			}
-			if (entry == null) {
+			if (entry != null) {
+				privilege.stats.numTLBSetHits[vpn % tlbSets]++;
+			} else {
 				privilege.stats.numTLBMisses++;
+				privilege.stats.numTLBSetMisses[vpn % tlbSets]++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
@@ -366,6 +541,15 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
+		if (usingTLB) {
+			microTLBReadVPN[slot] = vpn;
+			microTLBReadPPN[slot] = ppn;
+			if (writing) {
+				microTLBWriteVPN[slot] = vpn;
+				microTLBWritePPN[slot] = ppn;
+			}
+		}
+
 		int paddr = (ppn * pageSize) + offset;
 
 		if (Lib.test(dbgProcessor))
@@ -551,16 +735,43 @@ public final class Processor {
 	/** The value to be loaded by the delayed load currently in progress. */
 	private int loadValue;
 
+	/**
+	 * <tt>true</tt> if user ticks are charged in batches between interrupts,
+	 * from <tt>Processor.batchTicks</tt>.
+	 */
+	private boolean batchTicks;
+
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
-	/** Number of TLB entries. */
-	private int tlbSize = 4;
+	/** Number of TLB entries, from <tt>Processor.tlbSize</tt>. */
+	private int tlbSize;
+	/** Number of entries per TLB set, from <tt>Processor.tlbWays</tt>. */
+	private int tlbWays;
+	/** Number of TLB sets. */
+	private int tlbSets;
+	/**
+	 * Hash table over the valid TLB entries, keyed by the low bits of the
+	 * vpn. <tt>tlbBuckets</tt> holds the first entry number of each chain (or
+	 * -1), and <tt>tlbChain</tt> links each entry to the next in its chain.
+	 */
+	private int[] tlbBuckets, tlbChain;
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/** Number of slots in the direct-mapped micro-TLB. Must be a power of 2. */
+	private static final int microTLBSize = 64;
+	/**
+	 * Host-side cache of recent TLB hits, indexed by the low bits of the
+	 * virtual page number. A slot holds the cached vpn (or -1) and its ppn;
+	 * reads and writes are cached separately so that a write hit implies the
+	 * TLB entry is already dirty.
+	 */
+	private int[] microTLBReadVPN, microTLBReadPPN;
+	private int[] microTLBWriteVPN, microTLBWritePPN;
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 	/** Number of pages in a 32-bit address space. */
@@ -569,6 +780,8 @@ public final class Processor {
 	private int numPhysPages;
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
+	/** Pre-decoded instructions, indexed by physical page and word offset. */
+	private Decoded[][] decodeCache;
 
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
@@ -622,29 +835,46 @@ public final class Processor {
 		private int cause, badVAddr;
 	}
 
-	private class Instruction {
-		public void run() throws MipsException {
-			// hopefully this looks familiar to 152 students?
-			fetch();
-			decode();
-			execute();
-			writeBack();
+	/**
+	 * Return the pre-decoded form of the instruction word <i>value</i> found at
+	 * physical address <i>paddr</i>, decoding and caching it if necessary.
+	 * 
+	 * <p>
+	 * Cached records are validated against the instruction word actually
+	 * fetched, so the cache stays correct when the kernel rewrites physical
+	 * memory directly (loading a page, swapping, remapping) without telling
+	 * the processor.
+	 * 
+	 * @param paddr
+	 *            the physical address the instruction was fetched from.
+	 * @param value
+	 *            the instruction word.
+	 * @return the decoded instruction.
+	 */
+	private Decoded lookupDecoded(int paddr, int value) {
+		Decoded[] page = decodeCache[paddr / pageSize];
+		if (page == null) {
+			page = new Decoded[pageSize / 4];
+			decodeCache[paddr / pageSize] = page;
 		}
 
-		private boolean test(int flag) {
-			return Lib.test(flag, flags);
+		int index = (paddr % pageSize) / 4;
+		Decoded info = page[index];
+		if (info == null || info.value != value) {
+			info = new Decoded(value);
+			page[index] = info;
 		}
 
-		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-						+ "\t");
+		return info;
+	}
 
-			value = readMem(registers[regPC], 4);
-		}
+	/**
+	 * The register-independent part of decoding a single instruction word.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			this.value = value;
 
-		private void decode() {
 			op = Lib.extract(value, 26, 6);
 			rs = Lib.extract(value, 21, 5);
 			rt = Lib.extract(value, 16, 5);
@@ -652,7 +882,7 @@ public final class Processor {
 			sh = Lib.extract(value, 6, 5);
 			func = Lib.extract(value, 0, 6);
 			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			int imm = Lib.extend(value, 0, 16);
 
 			Mips info;
 			switch (op) {
@@ -672,24 +902,18 @@ public final class Processor {
 			format = info.format;
 			flags = info.flags;
 
-			mask = 0xFFFFFFFF;
-			branch = true;
-
 			// get memory access size
-			if (test(Mips.SIZEB))
+			if (Lib.test(Mips.SIZEB, flags))
 				size = 1;
-			else if (test(Mips.SIZEH))
+			else if (Lib.test(Mips.SIZEH, flags))
 				size = 2;
-			else if (test(Mips.SIZEW))
+			else if (Lib.test(Mips.SIZEW, flags))
 				size = 4;
 			else
 				size = 0;
 
-			// get nextPC
-			nextPC = registers[regNextPC] + 4;
-
 			// get dstReg
-			if (test(Mips.DSTRA))
+			if (Lib.test(Mips.DSTRA, flags))
 				dstReg = regRA;
 			else if (format == Mips.IFMT)
 				dstReg = rt;
@@ -698,21 +922,92 @@ public final class Processor {
 			else
 				dstReg = -1;
 
+			// the parts of jtarget that do not depend on registers
+			branchOffset = imm << 2;
+			jumpTarget = target << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags)) {
+				imm &= 0xFFFF;
+			}
+
+			this.imm = imm;
+		}
+
+		final int value, op, rs, rt, rd, sh, func, target, imm;
+		final int operation, format, flags;
+		final String name;
+
+		final int size, dstReg, branchOffset, jumpTarget;
+	}
+
+	private class Instruction {
+		public void run() throws MipsException {
+			// hopefully this looks familiar to 152 students?
+			fetch();
+			decode();
+			execute();
+			writeBack();
+		}
+
+		private boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
+
+		private void fetch() throws MipsException {
+			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+					|| Lib.test(dbgFullDisassemble))
+				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+						+ "\t");
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			paddr = translate(registers[regPC], 4, false);
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
+		}
+
+		private void decode() {
+			Decoded info = lookupDecoded(paddr, value);
+
+			op = info.op;
+			rs = info.rs;
+			rt = info.rt;
+			rd = info.rd;
+			sh = info.sh;
+			func = info.func;
+			target = info.target;
+			imm = info.imm;
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			size = info.size;
+			dstReg = info.dstReg;
+
+			mask = 0xFFFFFFFF;
+			branch = true;
+
+			// get nextPC
+			nextPC = registers[regNextPC] + 4;
+
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + info.branchOffset;
 			else if (format == Mips.JFMT)
-				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+				jtarget = (registers[regNextPC] & 0xF0000000) | info.jumpTarget;
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1072,7 +1367,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 		int operation, format, flags;
 		String name;
 
@@ -20,10 +20,23 @@ public final class Stats {
 				+ kernelTicks + ", user " + userTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
+		if (numTrackBufferHits > 0)
+			System.out.println("Track buffer: hits " + numTrackBufferHits);
+		if (numCacheHits + numCacheMisses > 0)
+			System.out.println("Buffer cache: hits " + numCacheHits
+					+ ", misses " + numCacheMisses + ", write-backs "
+					+ numCacheWriteBacks);
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		if (numTLBSetHits != null && numTLBSetHits.length > 1) {
+			System.out.print("TLB sets:");
+			for (int i = 0; i < numTLBSetHits.length; i++)
+				System.out.print(" [" + i + "] hits " + numTLBSetHits[i]
+						+ ", misses " + numTLBSetMisses[i]
+						+ (i + 1 < numTLBSetHits.length ? ";" : "\n"));
+		}
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
@@ -45,6 +58,14 @@ public final class Stats {
 	public int numDiskReads = 0;
 	/** The total number of sectors Nachos has written to the simulated disk. */
 	public int numDiskWrites = 0;
+	/** The number of sectors read from the disk's track buffer. */
+	public int numTrackBufferHits = 0;
+	/** The number of sector accesses the kernel's buffer cache satisfied. */
+	public int numCacheHits = 0;
+	/** The number of sector accesses the kernel's buffer cache missed. */
+	public int numCacheMisses = 0;
+	/** The number of dirty sectors the kernel's buffer cache wrote back. */
+	public int numCacheWriteBacks = 0;
 	/** The total number of characters Nachos has read from the console. */
 	public int numConsoleReads = 0;
 	/** The total number of characters Nachos has written to the console. */
@@ -53,6 +74,16 @@ public final class Stats {
 	public int numPageFaults = 0;
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
+	/**
+	 * The number of TLB hits in each TLB set, or <tt>null</tt> if the
+	 * processor has no TLB.
+	 */
+	public int[] numTLBSetHits = null;
+	/**
+	 * The number of TLB misses in each TLB set, or <tt>null</tt> if the
+	 * processor has no TLB.
+	 */
+	public int[] numTLBSetMisses = null;
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 	/** The total number of packets Nachos has received from the network. */
@@ -9,6 +9,8 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -41,6 +43,31 @@ public class StubFileSystem implements FileSystem {
 		}
 	}
 
+	/**
+	 * Open a file, truncating it, and map it into host memory. Reads and
+	 * writes then copy directly between the mapping and the caller's buffer,
+	 * with no seek or read or write call to the host, but they still take as
+	 * long in simulated time as those of a file returned by <tt>open()</tt>.
+	 * Meant for backing store such as swap, which is accessed a lot.
+	 * 
+	 * @param name
+	 *            the name of the file to open.
+	 * @return an <tt>OpenFile</tt> representing a new instance of the opened
+	 *         file, or <tt>null</tt> if the file could not be opened.
+	 */
+	public OpenFile openMapped(String name) {
+		if (!checkName(name))
+			return null;
+
+		delay();
+
+		try {
+			return new MappedOpenFile(name);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
 	public boolean remove(String name) {
 		if (!checkName(name))
 			return false;
@@ -150,6 +177,49 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
+		/**
+		 * One simulated operation, and one seek, for all the windows.
+		 */
+		public int read(int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+			if (!open)
+				return -1;
+
+			try {
+				delay();
+
+				file.seek(pos);
+				int amount = 0;
+				for (int i = 0; i < count; i++) {
+					int read = Math.max(0, file.read(buf, offsets[i], lengths[i]));
+					amount += read;
+					if (read < lengths[i])
+						break;
+				}
+				return amount;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		public int write(int pos, byte[] buf, int[] offsets, int[] lengths, int count) {
+			if (!open)
+				return -1;
+
+			try {
+				delay();
+
+				file.seek(pos);
+				int amount = 0;
+				for (int i = 0; i < count; i++) {
+					file.write(buf, offsets[i], lengths[i]);
+					amount += lengths[i];
+				}
+				return amount;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
 		public int length() {
 			try {
 				return (int) file.length();
@@ -174,6 +244,119 @@ public class StubFileSystem implements FileSystem {
 		private boolean open = false;
 	}
 
+	private class MappedOpenFile extends OpenFileWithPosition {
+		MappedOpenFile(final String name) throws IOException {
+			super(StubFileSystem.this, name);
+
+			final File f = new File(directory, name);
+
+			if (openCount == maxOpenFiles)
+				throw new IOException();
+
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					getChannel(f);
+				}
+			});
+
+			if (channel == null)
+				throw new IOException();
+
+			open = true;
+			openCount++;
+		}
+
+		private void getChannel(File f) {
+			try {
+				RandomAccessFile file = new RandomAccessFile(f, "rw");
+				file.setLength(0);
+				channel = file.getChannel();
+				map = channel.map(FileChannel.MapMode.READ_WRITE, 0, 0);
+			} catch (IOException e) {
+				channel = null;
+			}
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (!open || pos < 0)
+				return -1;
+
+			delay();
+
+			int amount = Math.max(0, Math.min(length, size - pos));
+			if (amount > 0) {
+				map.position(pos);
+				map.get(buf, offset, amount);
+			}
+			return amount;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (!open || pos < 0)
+				return -1;
+
+			delay();
+
+			// double the mapping, so a file written a page at a time is not
+			// remapped for every page
+			if (pos + length > map.capacity()) {
+				try {
+					map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math
+							.max(pos + length, 2 * map.capacity()));
+				} catch (IOException e) {
+					return -1;
+				}
+			}
+			map.position(pos);
+			map.put(buf, offset, length);
+			size = Math.max(size, pos + length);
+			return length;
+		}
+
+		public int length() {
+			return size;
+		}
+
+		public void close() {
+			if (open) {
+				open = false;
+				openCount--;
+			}
+
+			if (channel == null)
+				return;
+
+			// cut off the part of the mapping that was never written. Some
+			// hosts (Windows) refuse to truncate a file that is still mapped,
+			// so write the mapping out and drop it first. It is only unmapped
+			// once collected, so try again after a collection.
+			map.force();
+			map = null;
+			try {
+				try {
+					channel.truncate(size);
+				} catch (IOException e) {
+					System.gc();
+					channel.truncate(size);
+				}
+			} catch (IOException e) {
+				System.err.println("Could not truncate " + getName() + " to "
+						+ size + " bytes: " + e.getMessage());
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			channel = null;
+		}
+
+		private FileChannel channel = null;
+		private MappedByteBuffer map = null;
+		/** How far the file has been written; the mapping may reach further. */
+		private int size = 0;
+		private boolean open = false;
+	}
+
 	private int openCount = 0;
 	private static final int maxOpenFiles = 16;
 
@@ -1,7 +1,8 @@
 package nachos.machine;
 
+import java.util.ArrayList;
+
 import nachos.security.Privilege;
-import nachos.threads.Lock;
 import nachos.threads.Semaphore;
 
 /**
@@ -15,34 +16,36 @@ import nachos.threads.Semaphore;
 // Class for synchronous access of the disk. The physical disk
 // is an asynchronous device (disk requests return immediately, and
 // an interrupt happens later on). This is a layer on top of
-// the disk providing a synchronous interface (requests wait until
-// the request completes).
-//
-// Use a semaphore to synchronize the interrupt handlers with the
-// pending requests. And, because the physical disk can only
-// handle one operation at a time, use a lock to enforce mutual
-// exclusion.
-// The following class defines a "synchronous" disk abstraction.
-// As with other I/O devices, the raw physical disk is an asynchronous device --
-// requests to read or write portions of the disk return immediately,
-// and an interrupt occurs later to signal that the operation completed.
-// (Also, the physical characteristics of the disk device assume that
-// only one operation can be requested at a time).
+// the disk providing a synchronous interface: any thread making a
+// request waits until the request completes before returning.
 //
-// This class provides the abstraction that for any individual thread
-// making a request, it waits around until the operation finishes before
-// returning.
+// Each pending request has its own semaphore, which the interrupt
+// handler signals when the request completes. Because the physical disk
+// can only handle one operation at a time, requests that arrive while it
+// is busy are queued, and each time one completes the interrupt handler
+// issues the queued request that the scheduling policy picks next:
+// FCFS, SSTF (shortest seek first), SCAN (elevator) or C-SCAN (elevator
+// that only serves requests on the way up, then jumps back), set by
+// SynchDisk.scheduling.
 public class SynchDisk {
 
+	public static final int FCFS = 0, SSTF = 1, SCAN = 2, CSCAN = 3;
+
 	Disk disk; // Raw disk device
 
-	Semaphore semaphore; // To synchronize requesting thread
+	SynchDiskIntHandler handler; // internal handler
 
-	// with the interrupt handler
-	Lock lock; // Only one read/write request
+	Privilege privilege; // to count buffer cache accesses in the stats
 
-	// can be sent to the disk at a time
-	SynchDiskIntHandler handler; // internal handler
+	int scheduling; // how to order the queued requests
+
+	ArrayList<Request> queue = new ArrayList<Request>(); // waiting requests
+
+	Request current; // the request the disk is serving, or null
+
+	int head; // the last sector of the last request issued
+
+	boolean up = true; // SCAN: whether the head is moving up
 
 	// ----------------------------------------------------------------------
 	// SynchDisk
@@ -55,9 +58,21 @@ public class SynchDisk {
 
 	public SynchDisk(Privilege privilege, String name) {
 
+		this.privilege = privilege;
 		handler = new SynchDiskIntHandler(this);
 		disk = new Disk(privilege, name, handler);
 
+		String policy = Config.getString("SynchDisk.scheduling", "cscan");
+		if (policy.equalsIgnoreCase("fcfs"))
+			scheduling = FCFS;
+		else if (policy.equalsIgnoreCase("sstf"))
+			scheduling = SSTF;
+		else if (policy.equalsIgnoreCase("scan"))
+			scheduling = SCAN;
+		else if (policy.equalsIgnoreCase("cscan"))
+			scheduling = CSCAN;
+		else
+			Lib.assertNotReached("unknown SynchDisk.scheduling " + policy);
 	}
 
 	// ----------------------------------------------------------------------
@@ -70,22 +85,18 @@ public class SynchDisk {
 	// ----------------------------------------------------------------------
 
 	public void readSector(int sectorNumber, byte[] data, int index) {
-		lock().acquire(); // only one disk I/O at a time
-		disk.readRequest(sectorNumber, data, index);
-		semaphore().P(); // wait for interrupt
-		lock().release();
+		request(new Request(sectorNumber, 1, data, index, false));
 	}
 
-	private Semaphore semaphore() {
-		if (semaphore == null)
-			semaphore = new Semaphore(0);
-		return semaphore;
-	}
+	// ----------------------------------------------------------------------
+	// readSectors
+	// Read the "count" consecutive sectors starting at sectorNumber into a
+	// buffer, in one disk operation. Return only after the data has been
+	// read.
+	// ----------------------------------------------------------------------
 
-	private Lock lock() {
-		if (lock == null)
-			lock = new Lock();
-		return lock;
+	public void readSectors(int sectorNumber, int count, byte[] data, int index) {
+		request(new Request(sectorNumber, count, data, index, false));
 	}
 
 	// ----------------------------------------------------------------------
@@ -98,10 +109,118 @@ public class SynchDisk {
 	// ----------------------------------------------------------------------
 
 	public void writeSector(int sectorNumber, byte[] data, int index) {
-		lock().acquire(); // only one disk I/O at a time
-		disk.writeRequest(sectorNumber, data, index);
-		semaphore().P(); // wait for interrupt
-		lock().release();
+		request(new Request(sectorNumber, 1, data, index, true));
+	}
+
+	// ----------------------------------------------------------------------
+	// writeSectors
+	// Write a buffer into the "count" consecutive sectors starting at
+	// sectorNumber, in one disk operation. Return only after the data has
+	// been written.
+	// ----------------------------------------------------------------------
+
+	public void writeSectors(int sectorNumber, int count, byte[] data, int index) {
+		request(new Request(sectorNumber, count, data, index, true));
+	}
+
+	// ----------------------------------------------------------------------
+	// request
+	// Issue a request at once if the disk is idle, or queue it, and wait
+	// for it to complete.
+	// ----------------------------------------------------------------------
+
+	private void request(Request request) {
+		Lib.assertTrue(request.sector >= 0 && request.count > 0
+				&& request.sector + request.count <= Disk.NumSectors);
+		boolean intStatus = Machine.interrupt().disable();
+		if (current == null)
+			issue(request);
+		else
+			queue.add(request);
+		Machine.interrupt().restore(intStatus);
+		request.done.P(); // wait for interrupt
+	}
+
+	private void issue(Request request) {
+		current = request;
+		if (request.sector != head)
+			up = request.sector > head;
+		head = request.sector + request.count - 1;
+		if (request.writing)
+			disk.writeRequest(request.sector, request.count, request.data,
+					request.index);
+		else
+			disk.readRequest(request.sector, request.count, request.data,
+					request.index);
+	}
+
+	// ----------------------------------------------------------------------
+	// next
+	// Remove and return the queued request to issue next, or null if
+	// there is none.
+	// ----------------------------------------------------------------------
+
+	private Request next() {
+		if (queue.isEmpty())
+			return null;
+		int best = 0;
+		switch (scheduling) {
+		case SSTF:
+			for (int i = 1; i < queue.size(); i++)
+				if (distance(queue.get(i)) < distance(queue.get(best)))
+					best = i;
+			break;
+		case SCAN:
+			best = ahead(up);
+			if (best == -1)
+				best = ahead(!up);
+			break;
+		case CSCAN:
+			best = ahead(true);
+			if (best == -1) { // wrap around to the lowest sector
+				best = 0;
+				for (int i = 1; i < queue.size(); i++)
+					if (queue.get(i).sector < queue.get(best).sector)
+						best = i;
+			}
+			break;
+		}
+		return queue.remove(best);
+	}
+
+	private int distance(Request request) {
+		return Math.abs(request.sector - head);
+	}
+
+	// the nearest queued request at or beyond the head going up (or down),
+	// the oldest first among equals, or -1 if there is none
+	private int ahead(boolean up) {
+		int best = -1;
+		for (int i = 0; i < queue.size(); i++) {
+			int sector = queue.get(i).sector;
+			if ((up ? sector >= head : sector <= head)
+					&& (best == -1 || distance(queue.get(i)) < distance(queue.get(best))))
+				best = i;
+		}
+		return best;
+	}
+
+	// ----------------------------------------------------------------------
+	// cacheHit, cacheMiss, cacheWriteBack
+	// Count an access to the kernel's sector buffer cache that found the
+	// sector, one that had to read it, and a dirty sector written back.
+	// ----------------------------------------------------------------------
+
+	public void cacheHit() {
+		privilege.stats.numCacheHits++;
+	}
+
+	public void cacheMiss() {
+		privilege.stats.numCacheMisses++;
+	}
+
+	public void cacheWriteBack() {
+		privilege.stats.numCacheWriteBacks++;
 	}
 
 	// ----------------------------------------------------------------------
@@ -111,7 +230,29 @@ public class SynchDisk {
 	// ----------------------------------------------------------------------
 
 	public void requestDone() {
-		semaphore().V();
+		Request done = current;
+		current = null;
+		Request next = next();
+		if (next != null)
+			issue(next);
+		done.done.V();
+	}
+
+	// a read or write waiting for, or being served by, the disk
+	private static class Request {
+		Request(int sector, int count, byte[] data, int index,
+				boolean writing) {
+			this.sector = sector;
+			this.count = count;
+			this.data = data;
+			this.index = index;
+			this.writing = writing;
+		}
+
+		int sector, count, index;
+		byte[] data;
+		boolean writing;
+		Semaphore done = new Semaphore(0);
 	}
 
 }
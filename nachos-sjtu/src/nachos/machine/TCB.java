@@ -2,7 +2,9 @@
 
 package nachos.machine;
 
+import java.lang.reflect.Method;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 
 import nachos.security.Privilege;
 import nachos.threads.KThread;
@@ -13,6 +15,12 @@ import nachos.threads.KThread;
  * object.
  * 
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set in <tt>nachos.conf</tt> and the JVM
+ * supports them, the JVM threads are virtual threads rather than platform
+ * threads, so that a context switch does not need an OS thread wakeup and
+ * many more TCBs can exist at once (up to <tt>TCB.maxVirtualThreads</tt>).
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -39,6 +47,38 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		threadLimit = maxThreads;
+
+		if (Config.getBoolean("TCB.virtualThreads", false)) {
+			/*
+			 * Virtual threads only exist on newer JVMs, so look them up
+			 * reflectively; this has to happen before the security manager
+			 * is installed.
+			 */
+			try {
+				/*
+				 * A virtual thread that context switches inside a class
+				 * initializer is pinned, and keeps its carrier thread until it
+				 * runs again. With the default of one carrier per CPU, that
+				 * can leave no carrier for the TCB being switched to.
+				 */
+				if (System.getProperty(carrierProperty) == null)
+					System.setProperty(carrierProperty, "" + carrierThreads);
+
+				virtualThreadBuilder = Thread.class.getMethod("ofVirtual")
+						.invoke(null);
+				unstartedVirtualThread = Class.forName(
+						"java.lang.Thread$Builder").getMethod("unstarted",
+						Runnable.class);
+				threadLimit = Config.getInteger("TCB.maxVirtualThreads",
+						maxVirtualThreads);
+			} catch (Exception e) {
+				System.out.print(" (no virtual threads)");
+				virtualThreadBuilder = null;
+				unstartedVirtualThread = null;
+			}
+		}
 	}
 
 	/**
@@ -68,7 +108,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,18 +142,18 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
 			/*
 			 * The Java thread hasn't yet started, but we need to get it
-			 * blocking in yield(). We do this by temporarily turning off the
-			 * current TCB, starting the new Java thread, and waiting for it to
-			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
-			 * safe to context switch to the new TCB.
+			 * blocking in yield(). We do this by temporarily handing the CPU to
+			 * nobody, starting the new Java thread, and waiting for it to hand
+			 * it back to us from threadroot(). Once the new TCB wakes us up,
+			 * it's safe to context switch to the new TCB.
 			 */
-			currentTCB.running = false;
+			runningTCB = null;
 
 			this.javaThread.start();
 			currentTCB.waitForInterrupt();
@@ -160,13 +200,13 @@ public final class TCB {
 		 * There are some synchronization concerns here. As soon as we wake up
 		 * the next thread, we cannot assume anything about static variables, or
 		 * about any TCB's state. Therefore, before waking up the next thread,
-		 * we must latch the value of currentTCB, and set its running flag to
-		 * false (so that, in case we get interrupted before we call yield(),
-		 * the interrupt will set the running flag and yield() won't block).
+		 * we must latch the value of currentTCB. Handing runningTCB to this TCB
+		 * also takes it away from the previous one, and if we get interrupted
+		 * before we call yield(), the interrupt will hand it back and yield()
+		 * won't block.
 		 */
 
 		TCB previous = currentTCB;
-		previous.running = false;
 
 		this.interrupt();
 		previous.yield();
@@ -190,7 +230,6 @@ public final class TCB {
 		toBeDestroyed = null;
 
 		this.done = true;
-		currentTCB.running = false;
 
 		this.interrupt();
 		currentTCB.waitForInterrupt();
@@ -222,9 +261,9 @@ public final class TCB {
 		if (!isFirstTCB) {
 			/*
 			 * start() is waiting for us to wake it up, signalling that it's OK
-			 * to context switch to us. We leave the running flag false so that
-			 * we'll still run if a context switch happens before we go to
-			 * sleep. All we have to do is wake up the current TCB and then wait
+			 * to context switch to us. If a context switch to us happens before
+			 * we go to sleep, runningTCB will already be this TCB and we won't
+			 * block. All we have to do is wake up the current TCB and then wait
 			 * to get woken up by contextSwitch() or destroy().
 			 */
 
@@ -237,7 +276,7 @@ public final class TCB {
 			 */
 
 			currentTCB = this;
-			running = true;
+			runningTCB = this;
 		}
 
 		try {
@@ -255,6 +294,16 @@ public final class TCB {
 			runningThreads.removeElement(this);
 			if (runningThreads.isEmpty())
 				privilege.exit(0);
+
+			/*
+			 * Virtual threads are daemon threads, so the JVM would exit as
+			 * soon as the first TCB's (platform) thread did. Keep it parked
+			 * until Nachos exits instead.
+			 */
+			if (isFirstTCB && virtualThreadBuilder != null) {
+				while (true)
+					LockSupport.park();
+			}
 		} catch (Throwable e) {
 			System.out.print("\n");
 			e.printStackTrace();
@@ -287,31 +336,54 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Create the Java thread that will run a new TCB: a virtual thread if they
+	 * were enabled in <tt>givePrivilege()</tt>, otherwise a platform thread.
+	 * Must be called with privilege.
+	 * 
+	 * @param target
+	 *            the code the thread will run.
+	 * @return the new, unstarted thread.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			} catch (InterruptedException e) {
-			}
+	private static Thread newJavaThread(Runnable target) {
+		if (virtualThreadBuilder == null)
+			return new Thread(target);
+
+		try {
+			return (Thread) unstartedVirtualThread.invoke(
+					virtualThreadBuilder, target);
+		} catch (Exception e) {
+			Lib.assertNotReached("unable to create a virtual thread: " + e);
+			return null;
 		}
 	}
 
 	/**
-	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * Parks the Java thread bound to this TCB until <tt>runningTCB</tt> is this
+	 * TCB. <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to
+	 * wait for its turn to run. This includes the ping-pong process of starting
+	 * and destroying TCBs, as well as in context switching from this TCB to
+	 * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+	 * <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * <tt>LockSupport.park()</tt> may return spuriously, or because of a stale
+	 * <tt>unpark()</tt>, so the condition is re-checked every time. Unlike
+	 * <tt>Object.wait()</tt>, parking does not pin a virtual thread to its
+	 * carrier thread.
+	 */
+	private void waitForInterrupt() {
+		while (runningTCB != this)
+			LockSupport.park(this);
+	}
+
+	/**
+	 * Wake up this TCB by handing it <tt>runningTCB</tt> and unparking its Java
+	 * thread. Used in the ping-pong process of starting and destroying TCBs, as
+	 * well as in context switching to this TCB.
 	 */
-	private synchronized void interrupt() {
-		running = true;
-		notify();
+	private void interrupt() {
+		runningTCB = this;
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -341,6 +413,31 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The default maximum number of started, non-destroyed TCB's when they are
+	 * backed by virtual threads. Overridden by <tt>TCB.maxVirtualThreads</tt>.
+	 */
+	public static final int maxVirtualThreads = 10000;
+
+	/**
+	 * The number of carrier threads virtual TCBs are scheduled on, unless the
+	 * JVM was given <tt>jdk.virtualThreadScheduler.parallelism</tt>. Only one
+	 * TCB runs at a time, so the rest are only used while TCBs are pinned.
+	 */
+	private static final int carrierThreads = 16;
+	private static final String carrierProperty = "jdk.virtualThreadScheduler.parallelism";
+
+	/** The limit actually enforced by <tt>start(Runnable)</tt>. */
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * A <tt>Thread.Builder</tt> for virtual threads and its
+	 * <tt>unstarted(Runnable)</tt> method, or <tt>null</tt> if TCBs use
+	 * platform threads.
+	 */
+	private static Object virtualThreadBuilder = null;
+	private static Method unstartedVirtualThread = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -356,6 +453,22 @@ public final class TCB {
 	 */
 	private static TCB currentTCB = null;
 
+	/**
+	 * The TCB whose Java thread ought to be running, or <tt>null</tt> while a
+	 * new TCB's Java thread is being started. This is an entirely different
+	 * condition from membership in <tt>runningThreads</tt>, which contains all
+	 * TCB objects that have started and have not terminated. Only
+	 * <tt>interrupt()</tt> hands it to another TCB, and every other Java thread
+	 * stays parked in <tt>waitForInterrupt()</tt> until it is handed to its
+	 * TCB. When starting or destroying a TCB, it is temporarily a TCB other
+	 * than <tt>currentTCB</tt>.
+	 * 
+	 * <p>
+	 * Being <tt>volatile</tt>, writing it publishes everything the previous
+	 * TCB did to the next one, so no lock is needed.
+	 */
+	private static volatile TCB runningTCB = null;
+
 	/**
 	 * A vector containing all <i>running</i> TCB objects. It is initialized to
 	 * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
@@ -388,17 +501,6 @@ public final class TCB {
 	 */
 	private Thread javaThread = null;
 
-	/**
-	 * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-	 * be running. This is an entirely different condition from membership in
-	 * <tt>runningThreads</tt>, which contains all TCB objects that have started
-	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
-	 * associated Java thread ought to run ASAP. When starting or destroying a
-	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
-	 */
-	private boolean running = false;
-
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
 	 * <tt>waitForInterrupt()</tt> returns in the doomed TCB, <tt>yield()</tt>
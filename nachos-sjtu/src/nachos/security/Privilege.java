@@ -164,6 +164,26 @@ public abstract class Privilege {
 		 *            user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of user ticks that can elapse before any pending
+		 * interrupt becomes due. Returns 0 when every tick must go through
+		 * <tt>tick()</tt>, e.g. while interrupt debugging is enabled.
+		 * 
+		 * @return the number of user ticks that can be charged with
+		 *         <tt>advanceUserTicks()</tt>.
+		 */
+		public int userTicksUntilDue();
+
+		/**
+		 * Charge the specified number of user ticks at once, without checking
+		 * for due interrupts. The caller must not exceed the value returned by
+		 * the last call to <tt>userTicksUntilDue()</tt>.
+		 * 
+		 * @param count
+		 *            the number of user ticks to charge.
+		 */
+		public void advanceUserTicks(int count);
 	}
 
 	/**
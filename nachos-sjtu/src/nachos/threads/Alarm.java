@@ -48,6 +48,8 @@ public class Alarm {
 			}
 		}
 		
+		ThreadedKernel.scheduler.preempt(KThread.currentThread());
+		
 		Machine.interrupt().setStatus(intStatus);
 		
 		KThread.yield();
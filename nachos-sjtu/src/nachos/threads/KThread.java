@@ -1,5 +1,6 @@
 package nachos.threads;
 
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 import nachos.machine.TCB;
@@ -443,6 +444,39 @@ public class KThread {
 
 		new KThread(new PingTest(1)).setName("forked thread").fork();
 		new PingTest(0).run();
+
+		int switches = Config.getInteger("KThread.benchmarkSwitches", 0);
+		if (switches > 0)
+			switchBenchmark(switches);
+	}
+
+	/**
+	 * Measures context switch latency by ping-ponging between two threads
+	 * until <tt>switches</tt> yields have been made between them. Only run
+	 * when <tt>KThread.benchmarkSwitches</tt> is set, since it is meant to be
+	 * scaled to millions of switches.
+	 * 
+	 * @param switches
+	 *            the total number of yields to make.
+	 */
+	private static void switchBenchmark(final int switches) {
+		Runnable ping = new Runnable() {
+			public void run() {
+				for (int i = 0; i < switches / 2; i++)
+					KThread.yield();
+			}
+		};
+
+		long start = System.nanoTime();
+
+		KThread pong = new KThread(ping).setName("pong");
+		pong.fork();
+		ping.run();
+		pong.join();
+
+		long elapsed = System.nanoTime() - start;
+		System.out.println("*** " + switches + " switches in " + elapsed
+				/ 1000000 + " ms, " + elapsed / switches + " ns per switch");
 	}
 
 	private static final char dbgThread = 't';
@@ -1,9 +1,6 @@
 package nachos.threads;
 
-import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 
 import nachos.machine.Lib;
 import nachos.machine.Machine;
@@ -155,7 +152,7 @@ public class LotteryScheduler extends PriorityScheduler {
 				owner.own.remove(this);
 				owner.modify();
 			}
-			if (!waitQueue.isEmpty()) {
+			if (size > 0) {
 				State now = pickNextThread();
 				ret = now.thread;
 				remove(now);
@@ -177,58 +174,124 @@ public class LotteryScheduler extends PriorityScheduler {
 		 */
 		protected State pickNextThread() {
 			State ret = null;
-			if (!waitQueue.isEmpty()) {
-				int lottery = Lib.random(sum);
-				ret = waitQueue.higherEntry(lottery).getValue();
-			}
+			if (size > 0)
+				ret = slots[find(sum - 1 - Lib.random(sum))];
 			return (ret);
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// for (Pair x : waitQueue.keySet())
-			// System.out.println(x.priority + " " + x.time + " ");
-			System.out.println(waitQueue.size() + "=====================");
+			System.out.println(size + "=====================");
 		}
 
 		void remove(State state) {
-			rebuild(state);
+			int slot = state.slot;
+			Lib.assertTrue(slots[slot] == state);
+			update(slot, -tickets[slot]);
+			slots[slot] = null;
+			state.slot = -1;
+			size--;
 		}
 
 		void insert(State state) {
-			waitQueue.put(-1, state);
-			rebuild(null);
+			if (next == slots.length)
+				repack();
+			int slot = next++;
+			slots[slot] = state;
+			state.slot = slot;
+			update(slot, state.getEffectivePriority());
+			size++;
+			if (owner != null)
+				owner.modify();
 		}
 
 		void modify(State state) {
-			rebuild(null);
+			int delta = state.getEffectivePriority() - tickets[state.slot];
+			if (delta == 0)
+				return;
+			update(state.slot, delta);
 			if (owner != null)
 				owner.modify();
 		}
 
-		void rebuild(State del) {
-			ArrayList<Integer> lottery = new ArrayList<Integer>();
-			ArrayList<State> state = new ArrayList<State>();
-			for (Entry<Integer, State> tmp : waitQueue.entrySet()) {
-				if (del != null && del.thread.PID() == tmp.getValue().thread.PID())	continue;
-				lottery.add(tmp.getValue().getEffectivePriority());
-				state.add(tmp.getValue());
+		/**
+		 * Add <tt>delta</tt> tickets to <tt>slot</tt>, in O(log n).
+		 */
+		private void update(int slot, int delta) {
+			tickets[slot] += delta;
+			sum += delta;
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/**
+		 * Return the slot holding ticket number <tt>lottery</tt>, i.e. the
+		 * first slot whose prefix sum of tickets exceeds it, in O(log n).
+		 */
+		private int find(int lottery) {
+			int pos = 0;
+			for (int step = slots.length; step > 0; step >>= 1) {
+				if (pos + step <= slots.length && tree[pos + step] <= lottery) {
+					pos += step;
+					lottery -= tree[pos];
+				}
+			}
+			return pos;
+		}
+
+		/**
+		 * Move the waiting threads to the front of the slots, keeping their
+		 * order, and double the slots if more than half of them are in use.
+		 * Rebuilds the tree in O(n), which is amortized over at least as many
+		 * inserts.
+		 */
+		private void repack() {
+			int capacity = Math.max(slots.length, 4);
+			if (size * 2 > capacity)
+				capacity *= 2;
+			State[] newSlots = new State[capacity];
+			int[] newTickets = new int[capacity];
+			int count = 0;
+			for (int i = 0; i < next; i++) {
+				if (slots[i] != null) {
+					newSlots[count] = slots[i];
+					newTickets[count] = tickets[i];
+					slots[i].slot = count++;
+				}
 			}
-			sum = 0;
-			waitQueue.clear();
-			for (int i = 0; i < lottery.size(); i++) {
-				sum += lottery.get(i);				
-				waitQueue.put(sum, state.get(i));
+
+			tree = new int[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += newTickets[i - 1];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
 			}
+
+			slots = newSlots;
+			tickets = newTickets;
+			next = count;
 		}
 
 		State owner;
-		int sum;
-		TreeMap<Integer, State> waitQueue = new TreeMap<Integer, State>();
+		int sum, size;
+		/**
+		 * Waiting threads are kept in slots in the order they started waiting,
+		 * and a Fenwick tree over the tickets in each slot gives O(log n)
+		 * updates and draws. Tickets are numbered from the newest waiter, as
+		 * the cumulative map this replaces did, so a given seed still picks
+		 * the same threads. <tt>next</tt> is the first never-used slot, and
+		 * <tt>tree</tt> is 1-indexed.
+		 */
+		State[] slots = new State[0];
+		int[] tickets = new int[0], tree = new int[1];
+		int next;
 	}
 
 	protected class State extends ThreadState {
 		LotteryQueue belong;
+		/** The slot of this thread in <tt>belong</tt>. */
+		int slot = -1;
 		LinkedList<LotteryQueue> own = new LinkedList<LotteryQueue>();
 		
 		public State(KThread thread) {
@@ -280,7 +343,6 @@ public class LotteryScheduler extends PriorityScheduler {
 		public void waitForAccess(LotteryQueue waitQueue) {
 			belong = waitQueue;
 			belong.insert(this);
-			if (belong.transferPriority) belong.modify(this);
 		}
 
 		/**
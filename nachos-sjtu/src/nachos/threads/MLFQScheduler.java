@@ -0,0 +1,233 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler. Every thread is at one of a number
+ * of levels, and the next thread to receive access is the one that has waited
+ * longest at the highest level (level 0). Within a level, access is given on a
+ * first-come first-serve basis, as with a round-robin scheduler.
+ * 
+ * <p>
+ * Threads start at the highest level. A thread that the timer preempts
+ * 2<sup><i>level</i></sup> times has used up its allotment at that level and
+ * moves down one level, so CPU-bound threads sink. A thread that blocks (on the
+ * console, the disk, a lock, ...) moves up one level when it is woken up, so
+ * interactive threads stay on top. Every <tt>MLFQScheduler.boostInterval</tt>
+ * ticks all threads go back to the highest level, so that the threads at the
+ * bottom do not starve.
+ * 
+ * <p>
+ * There are no priorities, so no priority is transferred.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler. The number of levels
+	 * and the boost interval are read from <tt>MLFQScheduler.levels</tt> and
+	 * <tt>MLFQScheduler.boostInterval</tt>.
+	 */
+	public MLFQScheduler() {
+		levels = Config.getInteger("MLFQScheduler.levels", 3);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50000);
+		nextBoost = boostInterval;
+		Lib.assertTrue(levels > 0 && boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new multi-level feedback queue.
+	 * 
+	 * @param transferPriority
+	 *            ignored. Multi-level feedback queue schedulers have no
+	 *            priority.
+	 * @return a new multi-level feedback queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FeedbackQueue();
+	}
+
+	/**
+	 * Charge a time slice to the preempted thread, and move it down one level
+	 * if it has used up its allotment. Also starts a new boost epoch if
+	 * <tt>boostInterval</tt> ticks have passed since the last one.
+	 */
+	public void preempt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+		if (time >= nextBoost) {
+			epoch++;
+			nextBoost = time + boostInterval;
+		}
+
+		ThreadState state = getThreadState(thread);
+		if (++state.preemptions >= (1 << state.level) && state.level < levels - 1) {
+			state.level++;
+			state.preemptions = 0;
+		}
+	}
+
+	/**
+	 * Return the level of the specified thread. Must be called with interrupts
+	 * disabled.
+	 * 
+	 * @param thread
+	 *            the thread to get the level of.
+	 * @return the thread's level, 0 being the highest.
+	 */
+	public int getLevel(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).level;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread, sending it back to
+	 * the highest level if a boost happened since it was last looked at.
+	 * 
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		ThreadState state = (ThreadState) thread.schedulingState;
+		if (state.epoch != epoch) {
+			state.epoch = epoch;
+			state.level = 0;
+			state.preemptions = 0;
+		}
+		return state;
+	}
+
+	private class FeedbackQueue extends ThreadQueue {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		FeedbackQueue() {
+			waitQueues = new LinkedList[levels];
+			for (int i = 0; i < levels; i++)
+				waitQueues[i] = new LinkedList<KThread>();
+		}
+
+		/**
+		 * Add a thread to the end of the list for its level. Only the ready
+		 * queue is ever given a thread other than the current one, and then
+		 * the thread is being woken up or has just been forked, so it moves
+		 * up a level.
+		 * 
+		 * @param thread
+		 *            the thread to append to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (queueEpoch != epoch)
+				boost();
+
+			ThreadState state = getThreadState(thread);
+			if (thread != KThread.currentThread() && state.level > 0) {
+				state.level--;
+				state.preemptions = 0;
+			}
+			state.arrival = arrivals++;
+
+			waitQueues[state.level].add(thread);
+			size++;
+		}
+
+		/**
+		 * Remove the first thread of the highest non-empty level.
+		 * 
+		 * @return the first thread of the highest non-empty level, or
+		 *         <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size == 0)
+				return null;
+
+			if (queueEpoch != epoch)
+				boost();
+
+			for (int i = 0;; i++) {
+				if (!waitQueues[i].isEmpty()) {
+					size--;
+					return waitQueues[i].removeFirst();
+				}
+			}
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+		}
+
+		/**
+		 * Print out the contents of the queue, highest level first.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < levels; i++) {
+				System.out.print(i + ":");
+				for (Iterator<KThread> j = waitQueues[i].iterator(); j.hasNext();)
+					System.out.print(" " + j.next());
+				System.out.println();
+			}
+		}
+
+		/**
+		 * Move every waiting thread to the highest level, in the order they
+		 * started waiting.
+		 */
+		private void boost() {
+			queueEpoch = epoch;
+
+			LinkedList<KThread> all = waitQueues[0];
+			for (int i = 1; i < levels; i++) {
+				all.addAll(waitQueues[i]);
+				waitQueues[i].clear();
+			}
+			Collections.sort(all, new Comparator<KThread>() {
+				public int compare(KThread a, KThread b) {
+					long x = ((ThreadState) a.schedulingState).arrival;
+					long y = ((ThreadState) b.schedulingState).arrival;
+					return x < y ? -1 : (x > y ? 1 : 0);
+				}
+			});
+		}
+
+		private LinkedList<KThread>[] waitQueues;
+		private int size = 0;
+		private int queueEpoch = epoch;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, how many time slices it has
+	 * used at that level, and when it last started waiting.
+	 */
+	protected class ThreadState {
+		int level = 0, preemptions = 0, epoch = MLFQScheduler.this.epoch;
+		long arrival;
+	}
+
+	private int levels;
+	private int boostInterval;
+
+	/** Incremented by every boost, to reset threads and queues lazily. */
+	private int epoch = 0;
+	private long nextBoost;
+	private long arrivals = 0;
+}
@@ -1,7 +1,6 @@
 package nachos.threads;
 
-import java.util.LinkedList;
-import java.util.TreeMap;
+import java.util.ArrayList;
 
 import nachos.machine.Lib;
 import nachos.machine.Machine;
@@ -155,13 +154,11 @@ public class PriorityScheduler extends Scheduler {
 				owner.own.remove(this);
 				owner.modify();
 			}
-			if (!waitQueue.isEmpty()) {
-				ThreadState now = waitQueue.firstEntry().getValue();
+			if (size > 0) {
+				ThreadState now = head[maximum];
 				ret = now.thread;
 				remove(now);
-				allState.remove(now);
 				now.belong = null;
-				maximum = waitQueue.isEmpty() ? priorityMinimum : waitQueue.firstKey().priority;
 				if (transferPriority && owner != null) {
 					now.own.add(this);
 					now.modify();
@@ -179,35 +176,86 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		protected ThreadState pickNextThread() {
 			ThreadState ret = null;
-			if (!waitQueue.isEmpty())
-				ret = waitQueue.firstEntry().getValue();
+			if (size > 0)
+				ret = head[maximum];
 			return (ret);
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// for (Pair x : waitQueue.keySet())
-			// System.out.println(x.priority + " " + x.time + " ");
-			System.out.println(waitQueue.size() + "=====================");
+			// for (int i = priorityMaximum; i >= priorityMinimum; i--)
+			// for (ThreadState x = head[i]; x != null; x = x.next)
+			// System.out.println(i + " " + x.time + " ");
+			System.out.println(size + "=====================");
 		}
 
 		void insert(ThreadState state) {
-			waitQueue.put(state.hash(), state);
+			int old = maximum;
+			link(state);
+			if (maximum != old && owner != null)
+				owner.modify();
 		}
 
 		void remove(ThreadState state) {
-			waitQueue.remove(allState.get(state));
+			unlink(state);
 		}
 
 		void modify(ThreadState state) {
-			remove(state);
-			allState.put(state, state.hash());
-			insert(state);
-			if (maximum != waitQueue.firstKey().priority) {
-				maximum = waitQueue.firstKey().priority;
-				if (owner != null)
-					owner.modify();
-			}
+			if (state.bucket == state.getEffectivePriority())
+				return;
+			int old = maximum;
+			unlink(state);
+			link(state);
+			if (maximum != old && owner != null)
+				owner.modify();
+		}
+
+		/**
+		 * Put <tt>state</tt> in the bucket of its effective priority. A bucket
+		 * is kept in (time, PID) order, which for a newly waiting thread means
+		 * appending it.
+		 */
+		private void link(ThreadState state) {
+			int bucket = state.getEffectivePriority();
+			ThreadState prev = tail[bucket];
+			while (prev != null && state.before(prev))
+				prev = prev.prev;
+
+			ThreadState next = (prev == null) ? head[bucket] : prev.next;
+			state.prev = prev;
+			state.next = next;
+			if (prev == null)
+				head[bucket] = state;
+			else
+				prev.next = state;
+			if (next == null)
+				tail[bucket] = state;
+			else
+				next.prev = state;
+
+			state.bucket = bucket;
+			nonEmpty |= 1 << bucket;
+			maximum = 31 - Integer.numberOfLeadingZeros(nonEmpty);
+			size++;
+		}
+
+		private void unlink(ThreadState state) {
+			int bucket = state.bucket;
+			if (state.prev == null)
+				head[bucket] = state.next;
+			else
+				state.prev.next = state.next;
+			if (state.next == null)
+				tail[bucket] = state.prev;
+			else
+				state.next.prev = state.prev;
+			state.prev = state.next = null;
+
+			if (head[bucket] == null)
+				nonEmpty &= ~(1 << bucket);
+			maximum = (nonEmpty == 0) ? priorityMinimum : 31 - Integer
+					.numberOfLeadingZeros(nonEmpty);
+			size--;
 		}
 
 		/**
@@ -215,29 +263,19 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
-		TreeMap<ThreadState, Pair> allState = new TreeMap<ThreadState, Pair>();
-		TreeMap<Pair, ThreadState> waitQueue = new TreeMap<Pair, ThreadState>();
+		/**
+		 * One FIFO list per priority level, linked through the waiting
+		 * <tt>ThreadState</tt>s, and a bit mask of the non-empty ones, so that
+		 * the highest waiting priority is found in O(1) and waiting or
+		 * donating never allocates.
+		 */
+		ThreadState[] head = new ThreadState[priorityMaximum + 1];
+		ThreadState[] tail = new ThreadState[priorityMaximum + 1];
+		int nonEmpty, size;
 		ThreadState owner;
 		int maximum = priorityMinimum;
 	}
 
-	class Pair implements Comparable<Pair> {
-		int priority, id;
-		long time;
-
-		Pair(int _priority, long _time, int _id) {
-			priority = _priority;
-			time = _time;
-			id = _id;
-		}
-
-		public int compareTo(Pair a) {
-			if (priority != a.priority)	return a.priority - priority;
-			if (time != a.time)	return time < a.time ? -1 : 1;
-			return id - a.id;
-		}
-	}
-
 	/**
 	 * The scheduling state of a thread. This should include the thread's
 	 * priority, its effective priority, any objects it owns, and the queue it's
@@ -245,15 +283,17 @@ public class PriorityScheduler extends Scheduler {
 	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
-	protected class ThreadState implements Comparable<ThreadState> {
-		Pair hash() {return new Pair(getEffectivePriority(), time, thread.PID());}
+	protected class ThreadState {
 		/** The thread with which this object is associated. */
 		protected KThread thread;
 		/** The priority of the associated thread. */
-		LinkedList<PriorityQueue> own = new LinkedList<PriorityQueue>();
+		ArrayList<PriorityQueue> own = new ArrayList<PriorityQueue>();
 		protected int priority, donatePriority;
 		PriorityQueue belong;
 		long time;
+		/** The neighbours and bucket of this thread in <tt>belong</tt>. */
+		ThreadState prev, next;
+		int bucket;
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
 		 * specified thread.
@@ -313,10 +353,7 @@ public class PriorityScheduler extends Scheduler {
 		public void waitForAccess(PriorityQueue waitQueue) {
 			belong = waitQueue;
 			time = Machine.timer().getTime();
-			belong.allState.put(this, hash());
 			belong.insert(this);
-			if (belong.transferPriority	&& getEffectivePriority() > belong.maximum)
-				belong.modify(this);
 		}
 
 		/**
@@ -337,14 +374,24 @@ public class PriorityScheduler extends Scheduler {
 			}
 		}
 
-		public int compareTo(ThreadState x) {
-			return thread.PID() - x.thread.PID();
+		/**
+		 * Return <tt>true</tt> if this thread should be dequeued before
+		 * <tt>x</tt> when both have the same effective priority.
+		 */
+		boolean before(ThreadState x) {
+			if (time != x.time)
+				return time < x.time;
+			return thread.PID() < x.thread.PID();
 		}
 
+		/**
+		 * Recompute the donated priority, and pass it on to the queue this
+		 * thread waits on only if it changed.
+		 */
 		void modify() {
 			int now = priorityMinimum;
-			for (PriorityQueue queue : own)
-				now = Math.max(now, queue.maximum);
+			for (int i = 0; i < own.size(); i++)
+				now = Math.max(now, own.get(i).maximum);
 			if (now != donatePriority) {
 				donatePriority = now;
 				if (belong != null) belong.modify(this);
@@ -157,4 +157,18 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by the alarm, with interrupts disabled, when the timer is about
+	 * to preempt the specified thread. Schedulers that adapt to how threads
+	 * use the processor can use this to tell a thread that used up its time
+	 * slice from one that gave up the processor on its own. The default
+	 * implementation does nothing.
+	 * 
+	 * @param thread
+	 *            the thread being preempted.
+	 */
+	public void preempt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
 }
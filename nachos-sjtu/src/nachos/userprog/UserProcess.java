@@ -163,20 +163,7 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-
-		byte[] memory = Machine.processor().getMemory();
-
-		int amount = 0;
-		for (int i = 0; i < length; i++) {
-			int page = (vaddr + i) / pageSize;
-			if (page >= numPages || !pageTable[page].valid) break;
-			pageTable[page].used = true;
-			int addr = pageTable[page].ppn * pageSize + (vaddr + i) % pageSize;
-			data[offset + i] = memory[addr];
-			amount++;
-		}
-		return amount;
+		return transfer(vaddr, data, offset, length, false);
 	}
 
 	/**
@@ -212,22 +199,52 @@ public class UserProcess {
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
+		return transfer(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Copy between virtual memory and <tt>data</tt> a page at a time, so that
+	 * each page is translated once and copied with
+	 * <tt>System.arraycopy()</tt>.
+	 */
+	private int transfer(int vaddr, byte[] data, int offset, int length, boolean write) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
 		byte[] memory = Machine.processor().getMemory();
 
 		int amount = 0;
-		for (int i = 0; i < length; i++) {
-			int page = (vaddr + i) / pageSize;
-			if (page >= numPages || !pageTable[page].valid || pageTable[page].readOnly) break;
-			pageTable[page].used = pageTable[page].dirty = true;
-			int addr = pageTable[page].ppn * pageSize + (vaddr + i) % pageSize;
-			memory[addr] = data[offset + i];
-			amount++;
+		while (amount < length && vaddr >= 0) {
+			int addr = physicalAddress(vaddr, write);
+			if (addr == -1) break;
+			int count = Math.min(length - amount, pageSize - vaddr % pageSize);
+			if (write)
+				System.arraycopy(data, offset + amount, memory, addr, count);
+			else
+				System.arraycopy(memory, addr, data, offset + amount, count);
+			vaddr += count;
+			amount += count;
 		}
 		return amount;
 	}
 
+	/**
+	 * Return the physical address of virtual address <tt>vaddr</tt>, which
+	 * is about to be read, or written if <tt>write</tt> is set, and mark its
+	 * page used, and dirty if written. The address is only good until the
+	 * current thread next gives up the CPU.
+	 * 
+	 * @return the physical address, or -1 if <tt>vaddr</tt> cannot be
+	 *         accessed.
+	 */
+	protected int physicalAddress(int vaddr, boolean write) {
+		int page = vaddr / pageSize;
+		if (page >= numPages || !pageTable[page].valid) return -1;
+		if (write && pageTable[page].readOnly) return -1;
+		pageTable[page].used = true;
+		if (write) pageTable[page].dirty = true;
+		return pageTable[page].ppn * pageSize + vaddr % pageSize;
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -425,10 +442,19 @@ public class UserProcess {
 		return child.processID;
 	}
 
+	/**
+	 * Called just before this process blocks in <tt>join()</tt>, with
+	 * <tt>true</tt>, and once the child has finished, with <tt>false</tt>.
+	 */
+	protected void joining(boolean waiting) {
+	}
+
 	private int handleJoin(int pid, int status) {
 		if (!children.contains(pid)) return -1;
 		UserProcess child = idToProcess.get(pid);
+		joining(true);
 		child.thread.join();
+		joining(false);
 		byte[] buf = Lib.bytesFromInt(child.exitStatus);
 		writeVirtualMemory(status, buf);
 		return (child.exitSuccess?1:0);
@@ -439,6 +465,7 @@ public class UserProcess {
 		if (removeList.contains(fileName)) return -1;
 		OpenFile file = UserKernel.fileSystem.open(fileName, true);
 		if (file == null) return -1;
+		fileChanged(fileName);
 		int now = idToFile.lastKey() + 1;
 		idToFile.put(now, file);
 		idToName.put(now, fileName);
@@ -467,22 +494,139 @@ public class UserProcess {
 		return id;
 	}
 
+	/**
+	 * Data is moved straight between the file and the physical pages behind
+	 * the user's buffer, with one vectored read or write per run of pinned
+	 * pages. Stops at the first short read or write, as a single transfer
+	 * would.
+	 */
 	private int handleRead(int fileId, int buffer, int length) { //ok
 		OpenFile file = idToFile.get(fileId);
-		if (file == null) return -1;
-		byte[] buf = new byte[length];
-		int amount = file.read(buf, 0, length);
-		if (amount == -1) return -1;
-		return writeVirtualMemory(buffer, buf, 0, amount);
+		if (file == null || length < 0) return -1;
+		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
+		while (amount < length) {
+			int count = pinRun(buffer + amount, length - amount, true);
+			if (count == 0) break;
+			int wanted = runLength(count);
+			int read = file.read(memory, ioOffsets, ioLengths, count);
+			unpinRun(buffer + amount, wanted);
+			if (read == -1) return (amount == 0) ? -1 : amount;
+			amount += read;
+			if (read < wanted) break;
+		}
+		return amount;
 	}
 
 	private int handleWrite(int fileId, int buffer, int length) { //ok
 		OpenFile file = idToFile.get(fileId);
-		if (file == null) return -1;
-		byte[] buf = new byte[length];
-		int amount = readVirtualMemory(buffer, buf, 0, length);
-		if (amount == -1) return -1;
-		return file.write(buf, 0, amount);
+		if (file == null || length < 0) return -1;
+		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
+		while (amount < length) {
+			int count = pinRun(buffer + amount, length - amount, false);
+			if (count == 0) break;
+			int wanted = runLength(count);
+			int written = file.write(memory, ioOffsets, ioLengths, count);
+			unpinRun(buffer + amount, wanted);
+			if (written == -1) {
+				if (amount == 0) return -1;
+				break;
+			}
+			amount += written;
+			if (written < wanted) break;
+		}
+		if (amount > 0 && idToName.containsKey(fileId))
+			fileChanged(idToName.get(fileId));
+		return amount;
+	}
+
+	/**
+	 * Pin the pages holding the first bytes of the <tt>length</tt> bytes at
+	 * <tt>vaddr</tt>, as many of them as <tt>reservePins()</tt> grants, and
+	 * describe those bytes in <tt>ioOffsets</tt> and <tt>ioLengths</tt> as
+	 * windows of physical memory, merging physically adjacent pages. Stops at
+	 * the first page that cannot be accessed.
+	 * 
+	 * @return the number of windows.
+	 */
+	private int pinRun(int vaddr, int length, boolean write) {
+		if (ioOffsets == null) {
+			ioOffsets = new int[numPages];
+			ioLengths = new int[numPages];
+		}
+		if (vaddr < 0) return 0;
+		long last = ((long) vaddr + length - 1) / pageSize;
+		int granted = reservePins((int) Math.min(last - vaddr / pageSize + 1, numPages));
+		int count = 0, amount = 0, pages = 0;
+		for (; pages < granted && amount < length; pages++) {
+			int addr = pinPage(vaddr + amount, write);
+			if (addr == -1) break;
+			int bytes = Math.min(length - amount, pageSize - (vaddr + amount) % pageSize);
+			if (count > 0 && ioOffsets[count - 1] + ioLengths[count - 1] == addr)
+				ioLengths[count - 1] += bytes;
+			else {
+				ioOffsets[count] = addr;
+				ioLengths[count++] = bytes;
+			}
+			amount += bytes;
+		}
+		releasePins(granted - pages);
+		return count;
+	}
+
+	private int runLength(int count) {
+		int length = 0;
+		for (int i = 0; i < count; i++)
+			length += ioLengths[i];
+		return length;
+	}
+
+	/**
+	 * Unpin the pages pinned by <tt>pinRun()</tt> for the <tt>length</tt>
+	 * bytes at <tt>vaddr</tt>.
+	 */
+	private void unpinRun(int vaddr, int length) {
+		int first = vaddr / pageSize, last = (vaddr + length - 1) / pageSize;
+		for (int page = first; page <= last; page++)
+			unpinPage(page * pageSize);
+		releasePins(last - first + 1);
+	}
+
+	/**
+	 * Return the physical address of virtual address <tt>vaddr</tt>, like
+	 * <tt>physicalAddress()</tt>, and keep its page where it is until
+	 * <tt>unpinPage()</tt> is called, so that I/O that blocks can be done
+	 * straight into it. Every page stays put here.
+	 */
+	protected int pinPage(int vaddr, boolean write) {
+		return physicalAddress(vaddr, write);
+	}
+
+	protected void unpinPage(int vaddr) {
+	}
+
+	/**
+	 * Return how many of the next <tt>pages</tt> pages, at least one, may be
+	 * pinned right now, without blocking, and reserve pins for them. Called
+	 * with no pages of this process pinned. Every page stays put here, so all
+	 * of them may be.
+	 */
+	protected int reservePins(int pages) {
+		return pages;
+	}
+
+	/**
+	 * Give back <tt>pages</tt> pins granted by <tt>reservePins()</tt>.
+	 */
+	protected void releasePins(int pages) {
+	}
+
+	/**
+	 * Called when this process has created or written to file
+	 * <tt>name</tt>. Nothing here remembers what files hold.
+	 */
+	protected void fileChanged(String name) {
 	}
 
 	private int handleClose(int fileId, boolean need) { //ok
@@ -592,6 +736,8 @@ public class UserProcess {
 	
 	//addition
 	private int[] pageNumber;
+	/** The windows of physical memory of the current read or write. */
+	private int[] ioOffsets, ioLengths;
 	protected int processID, exitStatus = -1;
 	protected boolean exitSuccess = true;
 	protected TreeMap<Integer, OpenFile> idToFile; //file
@@ -0,0 +1,42 @@
+package nachos.vm;
+
+/**
+ * An LRU approximation. Every physical page has an 8-bit age counter; on each
+ * page fault the counters are shifted right, the used bit is shifted in at the
+ * top and cleared, and the page with the smallest counter is evicted.
+ */
+public class AgingReplacement extends PageReplacement {
+	int victim(VMProcess process) {
+		for (int ppn = 0; ppn < numPhysPages; ppn++) {
+			age[ppn] >>>= 1;
+			if (CoreMap.owner[ppn] != null && CoreMap.used(ppn)) {
+				age[ppn] |= 0x80;
+				CoreMap.clearUsed(ppn);
+			}
+		}
+		return super.victim(process);
+	}
+
+	void pageIn(int ppn) {
+		super.pageIn(ppn);
+		age[ppn] = 0x80;
+	}
+
+	void prefetched(int ppn) {
+		super.prefetched(ppn);
+		// evicted first unless it is used soon, or others are using it
+		if (CoreMap.refs[ppn] == 1)
+			age[ppn] = 0;
+	}
+
+	int pick(boolean skipTLB) {
+		int best = -1;
+		for (int ppn = 0; ppn < numPhysPages; ppn++) {
+			if (skip(ppn, skipTLB)) continue;
+			if (best == -1 || age[ppn] < age[best]) best = ppn;
+		}
+		return best;
+	}
+
+	int[] age = new int[numPhysPages];
+}
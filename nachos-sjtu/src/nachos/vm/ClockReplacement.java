@@ -0,0 +1,21 @@
+package nachos.vm;
+
+/**
+ * The clock algorithm: the hand sweeps the physical pages, clearing their used
+ * bits, and evicts the first page whose used bit is already clear.
+ */
+public class ClockReplacement extends PageReplacement {
+	int pick(boolean skipTLB) {
+		// two sweeps: the first may only clear used bits
+		for (int i = 0; i < 2 * numPhysPages; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numPhysPages;
+			if (skip(ppn, skipTLB)) continue;
+			if (!CoreMap.used(ppn)) return ppn;
+			CoreMap.clearUsed(ppn);
+		}
+		return -1;
+	}
+
+	int hand = 0;
+}
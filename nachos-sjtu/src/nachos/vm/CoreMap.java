@@ -0,0 +1,268 @@
+package nachos.vm;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.TranslationEntry;
+
+/**
+ * The inverted page table: what is in each physical page. Everything is kept
+ * in arrays indexed by ppn, so that looking up, taking or freeing a page on
+ * the fault path is O(1) and never boxes or hashes. Must be used with the VM
+ * lock held.
+ *
+ * <p>
+ * A physical page is mapped by one virtual page, or by several if it holds a
+ * page of an executable shared between the processes running it. The
+ * mappings of a page form a list that starts at <tt>owner</tt> and
+ * <tt>vpn</tt> and is linked through <tt>VMProcess.nextOwner</tt> and
+ * <tt>VMProcess.nextVPN</tt>.
+ */
+class CoreMap {
+	/**
+	 * Take a free physical page, or return -1 if there is none.
+	 */
+	static int allocate() {
+		if (free == 0) return -1;
+		return freeList[--free];
+	}
+
+	/**
+	 * Return the number of free physical pages.
+	 */
+	static int numFree() {
+		return free;
+	}
+
+	/**
+	 * Record that virtual page <tt>vpn</tt> of <tt>process</tt> is now in
+	 * physical page <tt>ppn</tt>, which may already be mapped by others.
+	 */
+	static void map(int ppn, VMProcess process, int vpn) {
+		process.nextOwner[vpn] = owner[ppn];
+		process.nextVPN[vpn] = CoreMap.vpn[ppn];
+		owner[ppn] = process;
+		CoreMap.vpn[ppn] = vpn;
+		refs[ppn]++;
+		process.resident++;
+	}
+
+	/**
+	 * Remove the mapping of physical page <tt>ppn</tt> by virtual page
+	 * <tt>vpn</tt> of <tt>process</tt>, and free the page if nothing else
+	 * maps it.
+	 */
+	static void unmap(int ppn, VMProcess process, int vpn) {
+		Lib.assertTrue(pins[ppn] == 0 || refs[ppn] > 1);
+		VMProcess prev = null, now = owner[ppn];
+		int prevPage = -1, page = CoreMap.vpn[ppn];
+		while (now != process || page != vpn) {
+			Lib.assertTrue(now != null);
+			prev = now;
+			prevPage = page;
+			now = prev.nextOwner[prevPage];
+			page = prev.nextVPN[prevPage];
+		}
+		if (prev == null) {
+			owner[ppn] = process.nextOwner[vpn];
+			CoreMap.vpn[ppn] = process.nextVPN[vpn];
+		}
+		else {
+			prev.nextOwner[prevPage] = process.nextOwner[vpn];
+			prev.nextVPN[prevPage] = process.nextVPN[vpn];
+		}
+		process.nextOwner[vpn] = null;
+		process.resident--;
+		if (--refs[ppn] == 0) {
+			uncache(ppn);
+			free(ppn);
+		}
+	}
+
+	/**
+	 * Forget every mapping of physical page <tt>ppn</tt>, without freeing it.
+	 * The page table entries must already have been invalidated.
+	 */
+	static void unmapAll(int ppn) {
+		Lib.assertTrue(owner[ppn] != null && pins[ppn] == 0);
+		while (owner[ppn] != null) {
+			VMProcess now = owner[ppn];
+			int page = vpn[ppn];
+			owner[ppn] = now.nextOwner[page];
+			vpn[ppn] = now.nextVPN[page];
+			now.nextOwner[page] = null;
+			now.resident--;
+		}
+		refs[ppn] = 0;
+		uncache(ppn);
+	}
+
+	/**
+	 * Free physical page <tt>ppn</tt>, which must already be unmapped.
+	 */
+	static void free(int ppn) {
+		Lib.assertTrue(owner[ppn] == null);
+		freeList[free++] = ppn;
+	}
+
+	/**
+	 * Record that physical page <tt>ppn</tt> holds the unmodified page
+	 * <tt>vpn</tt> of <tt>image</tt>, so that other processes running it can
+	 * map it too.
+	 */
+	static void cache(int ppn, SharedImage image, int vpn) {
+		CoreMap.image[ppn] = image;
+		imagePage[ppn] = vpn;
+		image.frame[vpn] = ppn;
+	}
+
+	/**
+	 * Stop offering physical page <tt>ppn</tt> to processes that fault on it
+	 * later, if it was offered.
+	 */
+	static void uncache(int ppn) {
+		if (image[ppn] != null) {
+			image[ppn].frame[imagePage[ppn]] = -1;
+			image[ppn] = null;
+		}
+	}
+
+	/**
+	 * Keep physical page <tt>ppn</tt> from being evicted until
+	 * <tt>unpin()</tt> is called as many times.
+	 */
+	static void pin(int ppn) {
+		pins[ppn]++;
+	}
+
+	static void unpin(int ppn) {
+		Lib.assertTrue(pins[ppn] > 0);
+		pins[ppn]--;
+	}
+
+	static boolean pinned(int ppn) {
+		return pins[ppn] > 0;
+	}
+
+	/**
+	 * Return <tt>true</tt> if a TLB entry maps physical page <tt>ppn</tt>.
+	 */
+	static boolean inTLB(int ppn) {
+		VMProcess now = owner[ppn];
+		for (int page = vpn[ppn]; now != null;) {
+			if (now.TLBPos[page] != -1)
+				return true;
+			VMProcess next = now.nextOwner[page];
+			page = now.nextVPN[page];
+			now = next;
+		}
+		return false;
+	}
+
+	/**
+	 * Return <tt>true</tt> if physical page <tt>ppn</tt> has been used since
+	 * its used bit was last cleared. The used and dirty bits of its TLB
+	 * entries are merged into its page table entries as a side effect.
+	 */
+	static boolean used(int ppn) {
+		boolean used = false;
+		VMProcess now = owner[ppn];
+		for (int page = vpn[ppn]; now != null;) {
+			used |= sync(now, page).used;
+			VMProcess next = now.nextOwner[page];
+			page = now.nextVPN[page];
+			now = next;
+		}
+		return used;
+	}
+
+	/**
+	 * Return <tt>true</tt> if physical page <tt>ppn</tt> has been written
+	 * since it was last saved.
+	 */
+	static boolean dirty(int ppn) {
+		boolean dirty = false;
+		VMProcess now = owner[ppn];
+		for (int page = vpn[ppn]; now != null;) {
+			dirty |= sync(now, page).dirty;
+			VMProcess next = now.nextOwner[page];
+			page = now.nextVPN[page];
+			now = next;
+		}
+		return dirty;
+	}
+
+	/**
+	 * Clear the used bit of physical page <tt>ppn</tt>, in its TLB entries
+	 * too.
+	 */
+	static void clearUsed(int ppn) {
+		clear(ppn, true, false);
+	}
+
+	/**
+	 * Clear the dirty bit of physical page <tt>ppn</tt>, in its TLB entries
+	 * too, once its contents have been saved.
+	 */
+	static void clearDirty(int ppn) {
+		clear(ppn, false, true);
+	}
+
+	private static void clear(int ppn, boolean used, boolean dirty) {
+		VMProcess now = owner[ppn];
+		for (int page = vpn[ppn]; now != null;) {
+			TranslationEntry entry = now.entry(page);
+			entry.used &= !used;
+			entry.dirty &= !dirty;
+			int pos = now.TLBPos[page];
+			if (pos != -1) {
+				TranslationEntry tmp = Machine.processor().readTLBEntry(pos);
+				if ((used && tmp.used) || (dirty && tmp.dirty)) {
+					tmp.used &= !used;
+					tmp.dirty &= !dirty;
+					Machine.processor().writeTLBEntry(pos, tmp);
+				}
+			}
+			VMProcess next = now.nextOwner[page];
+			page = now.nextVPN[page];
+			now = next;
+		}
+	}
+
+	/**
+	 * Return the page table entry of virtual page <tt>page</tt> of
+	 * <tt>process</tt>, with the used and dirty bits of its TLB entry, if
+	 * any, merged in.
+	 */
+	private static TranslationEntry sync(VMProcess process, int page) {
+		TranslationEntry entry = process.entry(page);
+		int pos = process.TLBPos[page];
+		if (pos != -1) {
+			TranslationEntry tmp = Machine.processor().readTLBEntry(pos);
+			entry.used |= tmp.used;
+			entry.dirty |= tmp.dirty;
+		}
+		return entry;
+	}
+
+	/** The number of physical pages. */
+	static final int numPhysPages = Machine.processor().getNumPhysPages();
+	/**
+	 * For each physical page: its first mapping, with a <tt>null</tt> owner
+	 * if it is not in use; how many mappings it has; how many times it is
+	 * pinned; and the executable and page it is offered as, if any.
+	 */
+	static VMProcess[] owner = new VMProcess[numPhysPages];
+	static int[] vpn = new int[numPhysPages];
+	static int[] refs = new int[numPhysPages];
+	static int[] pins = new int[numPhysPages];
+	static SharedImage[] image = new SharedImage[numPhysPages];
+	static int[] imagePage = new int[numPhysPages];
+	/** A stack of the free physical pages, lowest on top. */
+	private static int[] freeList = new int[numPhysPages];
+	private static int free = numPhysPages;
+
+	static {
+		for (int i = 0; i < numPhysPages; i++)
+			freeList[i] = numPhysPages - 1 - i;
+	}
+}
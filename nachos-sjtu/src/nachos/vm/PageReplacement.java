@@ -0,0 +1,107 @@
+package nachos.vm;
+
+/**
+ * Chooses the physical page to evict when a page fault finds no free page.
+ * The policy is selected with <tt>VMKernel.pageReplacement</tt>, and must be
+ * called with the VM lock held.
+ */
+public abstract class PageReplacement {
+	/**
+	 * Called after a page has been loaded into physical page <tt>ppn</tt>.
+	 */
+	void pageIn(int ppn) {
+		faults++;
+		last = ppn;
+	}
+
+	/**
+	 * Called after a page has been read ahead into physical page
+	 * <tt>ppn</tt>, without being faulted on.
+	 */
+	void prefetched(int ppn) {
+		prefetches++;
+	}
+
+	/**
+	 * Called when a page that was brought in ahead is used for the first
+	 * time.
+	 */
+	void prefetchHit() {
+		prefetchHits++;
+	}
+
+	/**
+	 * Called when a page fault is served by mapping a page of the executable
+	 * that another process already has in physical page <tt>ppn</tt>.
+	 */
+	void shared(int ppn) {
+		shares++;
+		last = ppn;
+	}
+
+	/**
+	 * Called when a write to a copy-on-write page has given it a copy of its
+	 * own in physical page <tt>ppn</tt>.
+	 */
+	void copied(int ppn) {
+		pageIn(ppn);
+		copies++;
+	}
+
+	/**
+	 * Return the physical page to evict. Pages in the TLB are only chosen if
+	 * every page is, and neither pinned pages nor the page loaded last are
+	 * ever chosen, so that the faulting instruction can always make progress.
+	 * Returns -1 if every page is pinned; the caller must wait for one to be
+	 * unpinned.
+	 */
+	int victim() {
+		return victim(null);
+	}
+
+	/**
+	 * Return the physical page to evict, from the pages only
+	 * <tt>process</tt> maps if it has any that can be chosen.
+	 */
+	int victim(VMProcess process) {
+		int ppn = -1;
+		if (process != null) {
+			only = process;
+			ppn = pick(true);
+			if (ppn == -1) ppn = pick(false);
+			only = null;
+		}
+		if (ppn == -1) ppn = pick(true);
+		if (ppn == -1) ppn = pick(false);
+		if (ppn != -1) evictions++;
+		return ppn;
+	}
+
+	/**
+	 * Return the physical page to evict, or -1 if <tt>skipTLB</tt> is set and
+	 * no page outside the TLB will do.
+	 */
+	abstract int pick(boolean skipTLB);
+
+	/**
+	 * Return <tt>true</tt> if <tt>ppn</tt> must not be chosen.
+	 */
+	boolean skip(int ppn, boolean skipTLB) {
+		if (ppn == last && numPhysPages > 1) return true;
+		if (CoreMap.owner[ppn] == null || CoreMap.pinned(ppn)) return true;
+		if (only != null && (CoreMap.owner[ppn] != only || CoreMap.refs[ppn] > 1)) return true;
+		return skipTLB && CoreMap.inTLB(ppn);
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + ": page faults " + faults
+				+ ", evictions " + evictions + ", prefetches " + prefetches
+				+ " (" + prefetchHits + " used)"
+				+ ", shared " + shares + ", copied " + copies;
+	}
+
+	int faults, evictions, prefetches, prefetchHits, shares, copies, last = -1;
+	final int numPhysPages = CoreMap.numPhysPages;
+	/** If set, only the private pages of this process may be chosen. */
+	private VMProcess only;
+}
@@ -0,0 +1,21 @@
+package nachos.vm;
+
+import nachos.machine.Lib;
+
+/**
+ * Evicts a random page.
+ */
+public class RandomReplacement extends PageReplacement {
+	int pick(boolean skipTLB) {
+		for (int i = 0; i < 26; i++) {
+			int ppn = Lib.random(numPhysPages);
+			if (!skip(ppn, skipTLB)) return ppn;
+		}
+		if (skipTLB) return -1;
+		for (int i = 1; i <= numPhysPages; i++) {
+			int ppn = (last + i) % numPhysPages;
+			if (!skip(ppn, false)) return ppn;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,34 @@
+package nachos.vm;
+
+/**
+ * The enhanced second-chance algorithm. Pages are ranked by (used, dirty):
+ * the hand first looks for a page that is neither used nor dirty, then for
+ * one that is dirty but not used, clearing used bits as it goes, and repeats
+ * once more if that fails. Clean pages are preferred because evicting them
+ * does not need a swap write.
+ */
+public class SecondChanceReplacement extends PageReplacement {
+	int pick(boolean skipTLB) {
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < numPhysPages; i++) {
+				int ppn = (hand + i) % numPhysPages;
+				if (skip(ppn, skipTLB)) continue;
+				if (!CoreMap.used(ppn) && !CoreMap.dirty(ppn)) return advance(ppn);
+			}
+			for (int i = 0; i < numPhysPages; i++) {
+				int ppn = (hand + i) % numPhysPages;
+				if (skip(ppn, skipTLB)) continue;
+				if (!CoreMap.used(ppn)) return advance(ppn);
+				CoreMap.clearUsed(ppn);
+			}
+		}
+		return -1;
+	}
+
+	private int advance(int ppn) {
+		hand = (ppn + 1) % numPhysPages;
+		return ppn;
+	}
+
+	int hand = 0;
+}
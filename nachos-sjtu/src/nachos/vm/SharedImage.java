@@ -0,0 +1,56 @@
+package nachos.vm;
+
+import java.util.HashMap;
+
+/**
+ * The pages of an executable that are in memory unmodified, so that every
+ * process running it can map them instead of loading its own copy. Read-only
+ * pages stay shared; writable ones are shared copy-on-write. Executables are
+ * told apart by file name, and an image lasts as long as some process is
+ * running it and no process changes the file. Must be used with the VM lock held.
+ */
+class SharedImage {
+	private SharedImage(String name, int numPages) {
+		this.name = name;
+		frame = new int[numPages];
+		for (int i = 0; i < numPages; i++)
+			frame[i] = -1;
+	}
+
+	/**
+	 * Return the image of executable <tt>name</tt>, which has
+	 * <tt>numPages</tt> pages, for a new process running it.
+	 */
+	static SharedImage open(String name, int numPages) {
+		SharedImage image = images.get(name);
+		if (image == null || image.frame.length != numPages) {
+			image = new SharedImage(name, numPages);
+			images.put(name, image);
+		}
+		image.users++;
+		return image;
+	}
+
+	/**
+	 * Called when executable <tt>name</tt> is created or written to, so that
+	 * processes that run it later load the new contents.
+	 */
+	static void changed(String name) {
+		images.remove(name);
+	}
+
+	/**
+	 * Called when a process running this image exits.
+	 */
+	void close() {
+		if (--users == 0 && images.get(name) == this)
+			images.remove(name);
+	}
+
+	/** The physical page holding each page, or -1 if it is not in memory. */
+	int[] frame;
+	private String name;
+	private int users = 0;
+
+	private static HashMap<String, SharedImage> images = new HashMap<String, SharedImage>();
+}
@@ -2,47 +2,90 @@ package nachos.vm;
 
 import java.util.*;
 
-import nachos.machine.CoffSection;
 import nachos.machine.Lib;
-import nachos.machine.Machine;
 import nachos.machine.OpenFile;
 import nachos.machine.Processor;
-import nachos.machine.TranslationEntry;
-import nachos.threads.Lock;
-import nachos.userprog.UserProcess;
-import nachos.vm.*;
-
-public class Swap{
-	static void read(Pair addr, byte[] data, int offset) {
-		int pos = position.get(addr);
-		file.read(pos * pageSize, data, offset, pageSize);
+
+/**
+ * The swap file, divided into page-sized slots. Each process gets one
+ * contiguous extent of slots, one per virtual page, so that the slot of a page
+ * is found without a lookup and neighbouring pages can be moved in a single
+ * read or write.
+ */
+public class Swap {
+	/**
+	 * Allocate an extent of <tt>pages</tt> contiguous slots, first fit.
+	 *
+	 * @return the first slot of the extent.
+	 */
+	static int allocate(int pages) {
+		for (Map.Entry<Integer, Integer> extent : freeSpace.entrySet()) {
+			int slot = extent.getKey(), length = extent.getValue();
+			if (length >= pages) {
+				freeSpace.remove(slot);
+				if (length > pages)
+					freeSpace.put(slot + pages, length - pages);
+				return slot;
+			}
+		}
+		int slot = cnt;
+		cnt += pages;
+		return slot;
 	}
 
-	static void write(Pair addr, byte[] data, int offset) {
-		int pos = 0;
-		if (position.containsKey(addr))
-			pos = position.get(addr);
-		else if (!freeSpace.isEmpty())
-			pos = freeSpace.pollFirst();
+	/**
+	 * Free the extent of <tt>pages</tt> slots starting at <tt>slot</tt>,
+	 * merging it with the free extents next to it.
+	 */
+	static void free(int slot, int pages) {
+		Map.Entry<Integer, Integer> prev = freeSpace.floorEntry(slot);
+		if (prev != null && prev.getKey() + prev.getValue() == slot) {
+			freeSpace.remove(prev.getKey());
+			slot = prev.getKey();
+			pages += prev.getValue();
+		}
+		Integer next = freeSpace.get(slot + pages);
+		if (next != null) {
+			freeSpace.remove(slot + pages);
+			pages += next;
+		}
+		if (slot + pages == cnt)
+			cnt = slot;
 		else
-			pos = cnt++;
-		file.write(pos * pageSize, data, offset, pageSize);
-		position.put(addr, pos);
+			freeSpace.put(slot, pages);
+	}
+
+	/**
+	 * Read <tt>pages</tt> pages starting at <tt>slot</tt> into <tt>data</tt>.
+	 */
+	static void read(int slot, byte[] data, int offset, int pages) {
+		int length = pages * pageSize;
+		Lib.assertTrue(file.read(slot * pageSize, data, offset, length) == length);
 	}
 
-	static void remove(Pair addr) {
-		int pos = position.remove(addr);
-		freeSpace.add(pos);
+	/**
+	 * Write <tt>pages</tt> pages from <tt>data</tt> starting at <tt>slot</tt>.
+	 */
+	static void write(int slot, byte[] data, int offset, int pages) {
+		int length = pages * pageSize;
+		Lib.assertTrue(file.write(slot * pageSize, data, offset, length) == length);
 	}
 
 	public static void close() {
 		file.close();
 	}
 
-	public static OpenFile file = VMKernel.fileSystem.open("SWAP", true);
-	private static TreeMap<Pair, Integer> position = new TreeMap<Pair, Integer>();
-	private static TreeSet<Integer> freeSpace = new TreeSet<Integer>();
+	/** Opened by <tt>VMKernel.initialize()</tt>. */
+	public static OpenFile file;
+	/**
+	 * The most pages moved by one write, and read ahead by one page fault.
+	 * Set by <tt>VMKernel.initialize()</tt>, before <tt>VMProcess</tt> sizes
+	 * its buffers from them.
+	 */
+	static int clusterPages = 1, prefetchPages = 0;
+	/** The free extents below <tt>cnt</tt>, by first slot. */
+	private static TreeMap<Integer, Integer> freeSpace = new TreeMap<Integer, Integer>();
 	private static int cnt = 0;
 
 	private static final int pageSize = Processor.pageSize;
-}
\ No newline at end of file
+}
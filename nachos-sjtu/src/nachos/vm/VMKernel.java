@@ -1,5 +1,10 @@
 package nachos.vm;
 
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.StubFileSystem;
+import nachos.threads.Condition;
+import nachos.threads.KThread;
 import nachos.userprog.UserKernel;
 
 /**
@@ -18,7 +23,39 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
-		fileSystem.open("SWAP", true);
+		// opening can block, so don't leave it to the first page fault
+		if (Config.getBoolean("VMKernel.mappedSwap", false)
+				&& fileSystem instanceof StubFileSystem)
+			Swap.file = ((StubFileSystem) fileSystem).openMapped("SWAP");
+		else
+			Swap.file = fileSystem.open("SWAP", true);
+		Swap.clusterPages = Config.getInteger("VMKernel.swapCluster", 4);
+		Swap.prefetchPages = Config.getInteger("VMKernel.swapPrefetch", 3);
+		faultAround = Config.getInteger("VMKernel.faultAround", 4);
+		frameQuotas = Config.getBoolean("VMKernel.frameQuotas", false);
+		pffLow = Config.getInteger("VMKernel.pffLow", 2000);
+		pffHigh = Config.getInteger("VMKernel.pffHigh", 20000);
+		suspendTicks = Config.getInteger("VMKernel.suspendTicks", 3000000);
+		Lib.assertTrue(0 <= pffLow && pffLow <= pffHigh && suspendTicks >= 0);
+		Lib.assertTrue(Swap.clusterPages >= 1 && Swap.prefetchPages >= 0
+				&& faultAround >= 0);
+		replacement = (PageReplacement) Lib.constructObject(Config.getString(
+				"VMKernel.pageReplacement", "nachos.vm.AgingReplacement"));
+
+		lowWatermark = Config.getInteger("VMKernel.lowWatermark",
+				CoreMap.numPhysPages / 8);
+		highWatermark = Config.getInteger("VMKernel.highWatermark",
+				Math.max(lowWatermark, CoreMap.numPhysPages / 4));
+		Lib.assertTrue(0 <= lowWatermark && lowWatermark <= highWatermark
+				&& highWatermark < CoreMap.numPhysPages - 1);
+		pageoutWanted = new Condition(VMProcess.lock);
+		if (lowWatermark > 0) {
+			new KThread(new Runnable() {
+				public void run() {
+					pageout();
+				}
+			}).setName("pageout").fork();
+		}
 	}
 
 	/**
@@ -39,9 +76,49 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		Lib.debug(dbgVM, replacement.toString());
+		if (frameQuotas)
+			Lib.debug(dbgVM, "Frame quotas: " + VMProcess.suspensions + " suspensions");
 		Swap.close();
 		super.terminate();
 	}
 
+	/**
+	 * The pageout daemon. Whenever fewer than <tt>lowWatermark</tt> physical
+	 * pages are free, it evicts pages until <tt>highWatermark</tt> are, so
+	 * that most page faults find a free page and need not wait for a victim
+	 * to be written to swap.
+	 */
+	private static void pageout() {
+		VMProcess.lock.acquire();
+		while (true) {
+			while (CoreMap.numFree() >= lowWatermark)
+				pageoutWanted.sleep();
+			while (CoreMap.numFree() < highWatermark)
+				VMProcess.reclaim();
+		}
+	}
+
+	/** The page replacement policy used by <tt>VMProcess.loadPage()</tt>. */
+	static PageReplacement replacement;
+	/**
+	 * The free page watermarks of the pageout daemon, which is off if
+	 * <tt>lowWatermark</tt> is 0, and the condition it waits on.
+	 */
+	static int lowWatermark, highWatermark;
+	static Condition pageoutWanted;
+	/** The most pages mapped ahead of a run of sequential page faults. */
+	static int faultAround;
+	/**
+	 * Whether each process gets a frame quota from its page fault
+	 * frequency. A process that faults again within <tt>pffLow</tt> ticks of
+	 * its own running time gets one more frame, and one that ran for more
+	 * than <tt>pffHigh</tt> ticks drops the pages it did not use meanwhile.
+	 * While the quotas add up to more than memory, a faulting process is
+	 * swapped out for <tt>suspendTicks</tt>, unless that is 0.
+	 */
+	static boolean frameQuotas;
+	static int pffLow, pffHigh, suspendTicks;
+
 	private static final char dbgVM = 'v';
 }
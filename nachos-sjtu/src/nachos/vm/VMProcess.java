@@ -8,7 +8,9 @@ import nachos.machine.Machine;
 import nachos.machine.OpenFile;
 import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
+import nachos.threads.Condition;
 import nachos.threads.Lock;
+import nachos.threads.ThreadedKernel;
 import nachos.userprog.UserProcess;
 
 /**
@@ -24,36 +26,100 @@ public class VMProcess extends UserProcess {
 			store[i] = new TranslationEntry(-1, -1, false, false, false, false);
 	}
 
-	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-		byte[] memory = Machine.processor().getMemory();
-		int amount = 0;
-		for (int i = 0; i < length; i++) {
-			int page = (vaddr + i) / pageSize;
-			if (page < 0 || page >= numPages) break;
-			if (!pageTable[page].valid) loadPage(page);
-			pageTable[page].used = true;
-			int addr = pageTable[page].ppn * pageSize + (vaddr + i) % pageSize;
-			data[offset + i] = memory[addr];
-			++amount;
-		}
-		return amount;
+	/**
+	 * Return the physical address of virtual address <tt>vaddr</tt>,
+	 * faulting its page in, and giving it a copy of its own first if it is
+	 * copy-on-write and about to be written.
+	 */
+	protected int physicalAddress(int vaddr, boolean write) {
+		int page = vaddr / pageSize;
+		if (page >= numPages) return -1;
+		if (write && cow[page]) copyOnWrite(page);
+		if (write && pageTable[page].readOnly) return -1;
+		// loadPage() can block, and the page be taken again meanwhile
+		while (!pageTable[page].valid) loadPage(page);
+		pageTable[page].used = true;
+		if (write) pageTable[page].dirty = true;
+		return pageTable[page].ppn * pageSize + vaddr % pageSize;
 	}
 
-	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-		byte[] memory = Machine.processor().getMemory();
-		int amount = 0;
-		for (int i = 0; i < length; i++) {
-			int page = (vaddr + i) / pageSize;
-			if (page < 0 || page >= numPages || pageTable[page].readOnly) break;
-			if (!pageTable[page].valid)	loadPage(page);
-			pageTable[page].used = pageTable[page].dirty = true;
-			int addr = pageTable[page].ppn * pageSize + (vaddr + i) % pageSize;
-			memory[addr] = data[offset + i];
-			++amount;
+	/**
+	 * Fault in the page of virtual address <tt>vaddr</tt> and pin it, so that
+	 * a system call can do I/O straight into it.
+	 */
+	protected int pinPage(int vaddr, boolean write) {
+		int page = vaddr / pageSize;
+		while (true) {
+			int addr = physicalAddress(vaddr, write);
+			if (addr == -1) return -1;
+			// taking the lock can block, and the page be taken meanwhile
+			lock.acquire();
+			boolean valid = pageTable[page].valid;
+			if (valid)
+				CoreMap.pin(pageTable[page].ppn);
+			lock.release();
+			if (valid)
+				return pageTable[page].ppn * pageSize + vaddr % pageSize;
 		}
-		return amount;
+	}
+
+	protected void unpinPage(int vaddr) {
+		lock.acquire();
+		CoreMap.unpin(pageTable[vaddr / pageSize].ppn);
+		unpinned.wakeAll();
+		lock.release();
+	}
+
+	/**
+	 * Each process may pin one page of its own, and system calls share pins
+	 * for a quarter of memory beyond that, so that a call never waits for
+	 * another's I/O to finish, and however many pages calls want at once,
+	 * faults can still find a page to evict before long.
+	 */
+	protected int reservePins(int pages) {
+		Lib.assertTrue(pinsHeld == 0);
+		if (pages == 0)
+			return 0;
+		lock.acquire();
+		// over its quota, a fault evicts one of the process's own pages, so
+		// some of them must stay unpinned
+		int shared = Math.min(Math.min(pages, quota - 1) - 1, pinsLeft);
+		shared = Math.max(shared, 0);
+		pinsLeft -= shared;
+		lock.release();
+		pinsHeld = shared + 1;
+		return pinsHeld;
+	}
+
+	protected void releasePins(int pages) {
+		// the process's own pin is the last one given back
+		int shared = Math.min(pages, pinsHeld - 1);
+		pinsHeld -= pages;
+		if (shared <= 0)
+			return;
+		lock.acquire();
+		pinsLeft += shared;
+		lock.release();
+	}
+
+	/**
+	 * Stop sharing the pages of executable <tt>name</tt> with processes that
+	 * run it from now on, as they may no longer match the file. Processes
+	 * already running it keep their image.
+	 */
+	protected void fileChanged(String name) {
+		lock.acquire();
+		SharedImage.changed(name);
+		lock.release();
+	}
+
+	/**
+	 * Execute the specified program, remembering its name so that its pages
+	 * can be shared with other processes running it.
+	 */
+	public boolean execute(String name, String[] args) {
+		executable = name;
+		return super.execute(name, args);
 	}
 
 	/**
@@ -61,6 +127,10 @@ public class VMProcess extends UserProcess {
 	 * Called by <tt>UThread.saveState()</tt>.
 	 */
 	public void saveState() {
+		long ran = Machine.timer().getTime() - resumed;
+		runTime += ran;
+		if (!swappedOut)
+			progress += ran;
 		for (int i = 0; i < TLBSize; i++) {
 			TranslationEntry now = Machine.processor().readTLBEntry(i);
 			if (now.valid && pageTable[now.vpn].valid) {
@@ -77,8 +147,17 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
+		resumed = Machine.timer().getTime();
 		for (int i = 0; i < TLBSize; i++) {
 			if (store[i].valid && !pageTable[store[i].vpn].valid) store[i].valid = false;
+			// the page may have been aged or cleaned while we were away
+			if (store[i].valid) {
+				TranslationEntry entry = pageTable[store[i].vpn];
+				store[i].ppn = entry.ppn;
+				store[i].readOnly = entry.readOnly;
+				store[i].used &= entry.used;
+				store[i].dirty &= entry.dirty;
+			}
 			if (store[i].valid && pageTable[store[i].vpn].valid) TLBPos[store[i].vpn] = i;
 			Machine.processor().writeTLBEntry(i, store[i]);
 		}
@@ -93,6 +172,12 @@ public class VMProcess extends UserProcess {
 	protected boolean loadSections() {
 		TLBPos = new int[numPages];
 		pageTable = new TranslationEntry[numPages];
+		swapped = new boolean[numPages];
+		coffSection = new CoffSection[numPages];
+		cow = new boolean[numPages];
+		ahead = new boolean[numPages];
+		nextOwner = new VMProcess[numPages];
+		nextVPN = new int[numPages];
 
 		for (int i = 0; i < numPages; i++) {
 			TLBPos[i] = -1;
@@ -100,6 +185,7 @@ public class VMProcess extends UserProcess {
 		}
 
 		// load Sections
+		int coffPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 
@@ -108,10 +194,21 @@ public class VMProcess extends UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 				// for now, just assume virtual addresses=physical addresses
-				idToCoff.put(vpn, section);
-				pageTable[vpn].readOnly = section.isReadOnly();
+				coffSection[vpn] = section;
+				// writable pages are shared until they are first written
+				cow[vpn] = !section.isReadOnly();
+				pageTable[vpn].readOnly = true;
 			}
+			coffPages += section.getLength();
+		}
+		lock.acquire();
+		image = SharedImage.open(executable, coffPages);
+		if (VMKernel.frameQuotas) {
+			quota = minQuota;
+			demand += quota;
+			active++;
 		}
+		lock.release();
 		return true;
 	}
 
@@ -119,72 +216,454 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadidToCoff()</tt>.
 	 */
 	protected void unloadSections() {
-		for (int page:in) {
-			mem.remove(page);
-			VMKernel.freePage.add(page);
+		// another process may be evicting one of our pages
+		lock.acquire();
+		// and the pageout daemon may be writing some of them out
+		for (int i = 0; i < numPages; i++) {
+			if (pageTable[i].valid && CoreMap.pinned(pageTable[i].ppn)) {
+				unpinned.sleep();
+				i = -1;
+			}
 		}
-		for (int page:out)
-			Swap.remove(new Pair(processID, page));
+		for (int i = 0; i < numPages; i++) {
+			if (pageTable[i].valid) {
+				pageTable[i].valid = false;
+				CoreMap.unmap(pageTable[i].ppn, this, i);
+			}
+		}
+		image.close();
+		if (VMKernel.frameQuotas) {
+			demand -= quota;
+			active--;
+		}
+		if (swapBase != -1)
+			Swap.free(swapBase, numPages);
+		lock.release();
 	}
 
 	void loadPage(int page) {
 		lock.acquire();
-		Processor processor = Machine.processor();
-		byte[] memory = processor.getMemory();
-		int ppn = -1;
-		if (!VMKernel.freePage.isEmpty()) ppn = VMKernel.freePage.pollFirst();
-		else {
-			Pair ID = null;
-			VMProcess now = null;
-			for (int i = 0; i < 26; i++) {
-				ppn = Lib.random(processor.getNumPhysPages());
-				ID = mem.get(ppn);
-				now = (VMProcess) idToProcess.get(ID.processID);
-				if (now.TLBPos[ID.page] == -1) break;
-			}
-			now.pageTable[ID.page].valid = false;
-			if (now.TLBPos[ID.page] != -1) {
-				TranslationEntry tmp = processor.readTLBEntry(now.TLBPos[ID.page]);
-				now.TLBPos[ID.page] = -1;
-				if (tmp.valid && now.pageTable[ID.page].valid) {
-					now.pageTable[ID.page].used |= tmp.used;
-					now.pageTable[ID.page].dirty |= tmp.dirty;
-				}
-			}
-			if (now.pageTable[ID.page].dirty) {
-				Swap.write(new Pair(now.processID, ID.page), memory, ppn * pageSize);
-				now.out.add(ID.page);
-			}
-			now.in.remove(ppn);
-		}
-		in.add(ppn);
-		mem.put(ppn, new Pair(processID, page));
-		if (out.contains(page))
-			Swap.read(new Pair(processID, page), memory, ppn * pageSize);
-		else if (idToCoff.containsKey(page)) {
-			CoffSection section = idToCoff.get(page);
-			section.loadPage(page - section.getFirstVPN(), ppn);
+		int ppn = sharedFrame(page);
+		if (ppn != -1) {
+			install(page, ppn);
+			VMKernel.replacement.shared(ppn);
 		}
 		else {
-			for (int i = ppn * pageSize; i < (ppn + 1) * pageSize; i++)
-				memory[i] = 0;
+			ppn = takeFrame();
+			install(page, ppn);
+			if (swapped[page])
+				swapIn(page, ppn);
+			else
+				fill(page, ppn);
+			VMKernel.replacement.pageIn(ppn);
 		}
+		faultAround(page);
+		lock.release();
+	}
+
+	/**
+	 * Return the physical page that another process running the executable
+	 * already has page <tt>page</tt> in, or -1 if there is none.
+	 */
+	private int sharedFrame(int page) {
+		if (swapped[page] || !shareable(page))
+			return -1;
+		return image.frame[page];
+	}
+
+	/**
+	 * Return <tt>true</tt> if page <tt>page</tt> is an unmodified page of the
+	 * executable.
+	 */
+	private boolean shareable(int page) {
+		return coffSection[page] != null
+				&& (coffSection[page].isReadOnly() || cow[page]);
+	}
+
+	/**
+	 * Map virtual page <tt>page</tt> to physical page <tt>ppn</tt>.
+	 */
+	private void install(int page, int ppn) {
+		CoreMap.map(ppn, this, page);
 		pageTable[page].valid = true;
 		pageTable[page].ppn = ppn;
 		pageTable[page].used = pageTable[page].dirty = false;
+		ahead[page] = false;
+		TLBPos[page] = -1;
+	}
+
+	/**
+	 * Load page <tt>page</tt>, which is not in swap, from the executable or
+	 * with zeroes.
+	 */
+	private void fill(int page, int ppn) {
+		if (coffSection[page] != null) {
+			CoffSection section = coffSection[page];
+			section.loadPage(page - section.getFirstVPN(), ppn);
+			if (shareable(page))
+				CoreMap.cache(ppn, image, page);
+		}
+		else {
+			byte[] memory = Machine.processor().getMemory();
+			Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+		}
+	}
+
+	/**
+	 * Map the pages after <tt>page</tt> along with it. Pages of the
+	 * executable that are already in memory cost nothing to map, so up to
+	 * <tt>VMKernel.faultAround</tt> of them always are. Other pages are only
+	 * brought in while this process is faulting on pages in order: the window
+	 * doubles on each fault that continues the run, up to the same limit, and
+	 * closes on any other fault. They only take free physical pages to spare,
+	 * and pages in swap are left to <tt>swapIn()</tt>. No page is mapped that
+	 * would take the process past its quota.
+	 */
+	private void faultAround(int page) {
+		if (page == nextFault)
+			window = Math.min(Math.max(window * 2, 1), VMKernel.faultAround);
+		else
+			window = 0;
+		int vpn = page + 1;
+		for (; vpn <= page + VMKernel.faultAround && vpn < numPages
+				&& resident < quota; vpn++) {
+			if (pageTable[vpn].valid)
+				continue;
+			int ppn = sharedFrame(vpn);
+			if (ppn != -1)
+				install(vpn, ppn);
+			else {
+				if (vpn > page + window || swapped[vpn]
+						|| CoreMap.numFree() <= Math.max(VMKernel.lowWatermark, 1))
+					break;
+				ppn = CoreMap.allocate();
+				install(vpn, ppn);
+				fill(vpn, ppn);
+			}
+			prefetched(vpn, ppn);
+		}
+		nextFault = vpn;
+	}
+
+	/**
+	 * Called after page <tt>page</tt> has been brought into physical page
+	 * <tt>ppn</tt> without being faulted on.
+	 */
+	private void prefetched(int page, int ppn) {
+		ahead[page] = true;
+		VMKernel.replacement.prefetched(ppn);
+	}
+
+	/**
+	 * Take a free physical page, evicting one if there is none or this
+	 * process is at its quota, and wake the pageout daemon if free pages are
+	 * running low.
+	 */
+	private int takeFrame() {
+		int ppn = -1;
+		if (resident < quota)
+			ppn = CoreMap.allocate();
+		if (ppn == -1) {
+			// over its quota, a process replaces its own pages
+			while ((ppn = VMKernel.replacement.victim(resident < quota ? null : this)) == -1)
+				unpinned.sleep();
+			evict(ppn);
+		}
+		if (CoreMap.numFree() < VMKernel.lowWatermark)
+			VMKernel.pageoutWanted.wake();
+		return ppn;
+	}
+
+	/**
+	 * Give copy-on-write page <tt>page</tt> a physical page of its own, after
+	 * an attempt to write it. A page that nothing else maps is simply no
+	 * longer offered for sharing.
+	 */
+	private void copyOnWrite(int page) {
+		lock.acquire();
+		TranslationEntry entry = pageTable[page];
+		cow[page] = false;
+		if (entry.valid && CoreMap.refs[entry.ppn] == 1)
+			CoreMap.uncache(entry.ppn);
+		else if (entry.valid) {
+			int old = entry.ppn;
+			CoreMap.pin(old);
+			int ppn = takeFrame();
+			CoreMap.unpin(old);
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, old * pageSize, memory, ppn * pageSize, pageSize);
+			CoreMap.unmap(old, this, page);
+			CoreMap.map(ppn, this, page);
+			entry.ppn = ppn;
+			VMKernel.replacement.copied(ppn);
+		}
+		entry.readOnly = false;
+		if (TLBPos[page] != -1) {
+			TranslationEntry now = Machine.processor().readTLBEntry(TLBPos[page]);
+			entry.used |= now.used;
+			Machine.processor().writeTLBEntry(TLBPos[page], entry);
+		}
 		lock.release();
 	}
+
+	/**
+	 * Read swapped out page <tt>page</tt> into physical page <tt>ppn</tt>.
+	 * The swapped out pages right after it are read along with it, into free
+	 * physical pages, as long as there are free pages to spare and the
+	 * process stays within its quota.
+	 */
+	private void swapIn(int page, int ppn) {
+		byte[] memory = Machine.processor().getMemory();
+		int count = 1;
+		while (count <= Swap.prefetchPages && page + count < numPages
+				&& swapped[page + count] && !pageTable[page + count].valid
+				&& CoreMap.numFree() - count >= Math.max(VMKernel.lowWatermark, 1)
+				&& resident + count <= quota)
+			count++;
+		if (count == 1) {
+			Swap.read(swapBase + page, memory, ppn * pageSize, 1);
+			return;
+		}
+
+		Swap.read(swapBase + page, swapInBuffer, 0, count);
+		System.arraycopy(swapInBuffer, 0, memory, ppn * pageSize, pageSize);
+		for (int i = 1; i < count; i++) {
+			int vpn = page + i, frame = CoreMap.allocate();
+			install(vpn, frame);
+			System.arraycopy(swapInBuffer, i * pageSize, memory, frame * pageSize, pageSize);
+			prefetched(vpn, frame);
+		}
+	}
+
+	/**
+	 * Write dirty page <tt>page</tt> of <tt>process</tt> to swap, along with
+	 * the dirty pages of <tt>process</tt> in memory next to it, in a single
+	 * write. The pages are clean afterwards. They are pinned during the
+	 * write, and if <tt>release</tt> is set the lock is released meanwhile.
+	 */
+	static void pageOut(VMProcess process, int page, boolean release, byte[] buffer) {
+		if (process.swapBase == -1)
+			process.swapBase = Swap.allocate(process.numPages);
+		int first = page, last = page;
+		while (last - first + 1 < Swap.clusterPages && process.clusterable(last + 1))
+			last++;
+		while (last - first + 1 < Swap.clusterPages && process.clusterable(first - 1))
+			first--;
+
+		byte[] memory = Machine.processor().getMemory();
+		for (int vpn = first; vpn <= last; vpn++) {
+			int ppn = process.pageTable[vpn].ppn;
+			System.arraycopy(memory, ppn * pageSize, buffer, (vpn - first) * pageSize, pageSize);
+			CoreMap.clearDirty(ppn);
+			CoreMap.pin(ppn);
+		}
+		if (release) lock.release();
+		Swap.write(process.swapBase + first, buffer, 0, last - first + 1);
+		if (release) lock.acquire();
+		for (int vpn = first; vpn <= last; vpn++) {
+			process.swapped[vpn] = true;
+			CoreMap.unpin(process.pageTable[vpn].ppn);
+		}
+		unpinned.wakeAll();
+	}
+
+	/**
+	 * Return <tt>true</tt> if page <tt>vpn</tt> can be written out along with
+	 * its neighbour: it is in memory, dirty and not already being written.
+	 */
+	private boolean clusterable(int vpn) {
+		if (vpn < 0 || vpn >= numPages || !pageTable[vpn].valid)
+			return false;
+		int ppn = pageTable[vpn].ppn;
+		return !CoreMap.pinned(ppn) && CoreMap.dirty(ppn);
+	}
+
+	/**
+	 * Take physical page <tt>ppn</tt> away from everything mapping it,
+	 * dropping it from the TLB and writing it to swap if it is dirty. Only a
+	 * page with a single mapping can be dirty.
+	 */
+	static void evict(int ppn) {
+		boolean dirty = CoreMap.dirty(ppn);
+		VMProcess now = CoreMap.owner[ppn];
+		for (int page = CoreMap.vpn[ppn]; now != null;) {
+			if (now.TLBPos[page] != -1) {
+				Machine.processor().writeTLBEntry(now.TLBPos[page], invalid);
+				now.TLBPos[page] = -1;
+			}
+			now.pageTable[page].valid = false;
+			VMProcess next = now.nextOwner[page];
+			page = now.nextVPN[page];
+			now = next;
+		}
+		if (dirty) {
+			Lib.assertTrue(CoreMap.refs[ppn] == 1);
+			pageOut(CoreMap.owner[ppn], CoreMap.vpn[ppn], false, evictBuffer);
+		}
+		CoreMap.unmapAll(ppn);
+	}
+	
+	/**
+	 * Free one physical page for the pageout daemon, which must hold the
+	 * lock. A dirty page is written to swap with the lock released, so that
+	 * faults can be served meanwhile, and is only freed if it was not written
+	 * to, or pinned by a system call, again.
+	 */
+	static void reclaim() {
+		int ppn = VMKernel.replacement.victim();
+		if (ppn == -1) {
+			unpinned.sleep();
+			return;
+		}
+		VMProcess now = CoreMap.owner[ppn];
+		int page = CoreMap.vpn[ppn];
+		if (CoreMap.dirty(ppn)) {
+			pageOut(now, page, true, pageoutBuffer);
+			if (CoreMap.dirty(ppn) || CoreMap.pinned(ppn)) return;
+		}
+		evict(ppn);
+		CoreMap.free(ppn);
+	}
 	
+	/**
+	 * Adjust the quota of this process, which has just faulted, from the
+	 * running time since its last fault, and swap it out for a while if the
+	 * quotas of the running processes no longer fit in memory.
+	 */
+	private void pageFaultFrequency() {
+		lock.acquire();
+		long now = runTime + Machine.timer().getTime() - resumed;
+		if (now - lastFault < VMKernel.pffLow)
+			setQuota(quota + 1);
+		else if (now - lastFault > VMKernel.pffHigh) {
+			// the pages used since the last fault are the working set
+			for (int vpn = 0; vpn < numPages; vpn++) {
+				if (!pageTable[vpn].valid) continue;
+				int ppn = pageTable[vpn].ppn;
+				if (CoreMap.refs[ppn] > 1 || CoreMap.pinned(ppn)) continue;
+				if (CoreMap.used(ppn))
+					CoreMap.clearUsed(ppn);
+				else
+					release(vpn);
+			}
+			setQuota(resident + 1);
+		}
+		lastFault = now;
+
+		// a process just let back in is given time to get its pages back
+		if (VMKernel.suspendTicks > 0 && demand > CoreMap.numPhysPages
+				&& active > 1 && now >= immuneUntil) {
+			suspend();
+			immuneUntil = runTime + Machine.timer().getTime() - resumed
+					+ VMKernel.pffHigh;
+		}
+		lock.release();
+	}
+
+	/**
+	 * Swap this process out, and wait until it is let back in. Suspended
+	 * processes are let back in one at a time, in order, once their quota
+	 * fits in memory, no other process has run for a while, or they have waited
+	 * <tt>VMKernel.suspendTicks</tt>, so that none waits forever on
+	 * processes that will not give up memory.
+	 */
+	private void suspend() {
+		suspensions++;
+		for (int vpn = 0; vpn < numPages; vpn++)
+			if (pageTable[vpn].valid && !CoreMap.pinned(pageTable[vpn].ppn))
+				release(vpn);
+		demand -= quota;
+		active--;
+		swappedOut = true;
+		long since = Machine.timer().getTime(), seen;
+		suspended.add(this);
+		do {
+			seen = progress;
+			lock.release();
+			ThreadedKernel.alarm.waitUntil(VMKernel.pffHigh / 2 + 1);
+			lock.acquire();
+		} while (suspended.getFirst() != this
+				|| (progress != seen && demand + quota > CoreMap.numPhysPages
+						&& Machine.timer().getTime() - since < VMKernel.suspendTicks));
+		suspended.removeFirst();
+		swappedOut = false;
+		demand += quota;
+		active++;
+	}
+
+	/**
+	 * A process waiting for a child touches none of its pages, so its quota
+	 * stops counting until the child has finished, and it then starts again
+	 * from the pages it still has.
+	 */
+	protected void joining(boolean waiting) {
+		if (!VMKernel.frameQuotas)
+			return;
+		lock.acquire();
+		if (waiting) {
+			demand -= quota;
+			active--;
+		}
+		else {
+			quota = Math.max(minQuota, Math.min(resident, CoreMap.numPhysPages));
+			demand += quota;
+			active++;
+		}
+		lock.release();
+	}
+
+	private void setQuota(int quota) {
+		quota = Math.max(minQuota, Math.min(quota, CoreMap.numPhysPages));
+		demand += quota - this.quota;
+		this.quota = quota;
+	}
+
+	/**
+	 * Give up page <tt>vpn</tt>: evict it if it is private, or stop mapping
+	 * it if others still do.
+	 */
+	private void release(int vpn) {
+		int ppn = pageTable[vpn].ppn;
+		if (CoreMap.refs[ppn] == 1) {
+			evict(ppn);
+			CoreMap.free(ppn);
+			return;
+		}
+		if (TLBPos[vpn] != -1) {
+			Machine.processor().writeTLBEntry(TLBPos[vpn], invalid);
+			TLBPos[vpn] = -1;
+		}
+		pageTable[vpn].valid = false;
+		CoreMap.unmap(ppn, this, vpn);
+	}
+
+	TranslationEntry entry(int vpn) {
+		return pageTable[vpn];
+	}
+
 	void TLBMiss() {
 		Processor processor = Machine.processor();
 		int addr = processor.readRegister(Processor.regBadVAddr), pos = -1;
-		for (int i = 0; i < TLBSize; i++)
+		int page = addr / pageSize;
+		// loadPage() can block, and the page be taken again meanwhile, so
+		// only pick a TLB entry once the page is in
+		if (!pageTable[page].valid) {
+			if (VMKernel.frameQuotas) pageFaultFrequency();
+			while (!pageTable[page].valid) loadPage(page);
+		}
+		else if (ahead[page]) {
+			ahead[page] = false;
+			VMKernel.replacement.prefetchHit();
+		}
+		// the entry must go into the TLB set for this page
+		int ways = processor.getTLBWays(), first = processor.getTLBSet(page) * ways;
+		for (int i = first; i < first + ways; i++)
 			if (!processor.readTLBEntry(i).valid) {
 				pos = i;
 				break;
 			}
 		if (pos == -1) {
-			pos = Lib.random(TLBSize);
+			pos = first + Lib.random(ways);
 			TranslationEntry now = processor.readTLBEntry(pos);
 			if (now.valid && pageTable[now.vpn].valid) {
 				pageTable[now.vpn].used |= now.used;
@@ -192,8 +671,6 @@ public class VMProcess extends UserProcess {
 				TLBPos[now.vpn] = -1;
 			}
 		}
-		int page = addr / pageSize;
-		if (!pageTable[page].valid) loadPage(page);
 		processor.writeTLBEntry(pos, pageTable[page]);
 		TLBPos[page] = pos;
 	}
@@ -211,6 +688,13 @@ public class VMProcess extends UserProcess {
 		case Processor.exceptionTLBMiss:
 			TLBMiss();
 			break;
+		case Processor.exceptionReadOnly:
+			int page = Machine.processor().readRegister(Processor.regBadVAddr) / pageSize;
+			if (page < numPages && cow[page])
+				copyOnWrite(page);
+			else
+				super.handleException(cause);
+			break;
 		default:
 			super.handleException(cause);
 			break;
@@ -222,12 +706,69 @@ public class VMProcess extends UserProcess {
 	private static final char dbgVM = 'v';
 	
 	//addition
-	private static Lock lock = new Lock();
-	private int TLBPos[];
-	private HashSet<Integer> out = new HashSet<Integer>();
-	private HashSet<Integer> in = new HashSet<Integer>();
-	private HashMap<Integer, CoffSection> idToCoff = new HashMap<Integer, CoffSection>();
+	static Lock lock = new Lock();
+	/** Signalled whenever a pinned page is unpinned. */
+	static Condition unpinned = new Condition(lock);
+	/**
+	 * The shared pins system calls may still take, and the pins this process
+	 * holds, counting its own; see <tt>reservePins()</tt>.
+	 */
+	private static int pinsLeft = CoreMap.numPhysPages / 4;
+	private int pinsHeld = 0;
+	/**
+	 * The pages being moved to or from swap: one buffer for faults, which
+	 * hold the lock, and one for the pageout daemon, which does not.
+	 */
+	private static byte[] evictBuffer = new byte[Swap.clusterPages * pageSize];
+	private static byte[] pageoutBuffer = new byte[Swap.clusterPages * pageSize];
+	private static byte[] swapInBuffer = new byte[(Swap.prefetchPages + 1) * pageSize];
+	/** The TLB entry of each page, or -1 if it is not in the TLB. */
+	int TLBPos[];
+	/**
+	 * Whether each page has a copy in swap, and the section it comes from. A
+	 * page's swap slot is <tt>swapBase</tt> plus its page number.
+	 */
+	private boolean[] swapped;
+	private int swapBase = -1;
+	private CoffSection[] coffSection;
+	/**
+	 * Whether each page is a writable page of the executable that has not
+	 * been written yet, and so may be shared; the executable, and its pages
+	 * in memory.
+	 */
+	private boolean[] cow;
+	private String executable;
+	private SharedImage image;
+	/**
+	 * Whether each page was brought in ahead of use and has not been used
+	 * since; the page a fault would continue the current run at, and how
+	 * many pages to map after it.
+	 */
+	private boolean[] ahead;
+	private int nextFault = -1, window = 0;
+	/**
+	 * The number of pages this process maps, and how many it may map before
+	 * it replaces its own pages; its running time, as of when it was last
+	 * switched in, and at its last fault.
+	 */
+	int resident;
+	private int quota = Integer.MAX_VALUE;
+	private long runTime, resumed, lastFault, immuneUntil;
+	private boolean swappedOut = false;
+	/**
+	 * With <tt>VMKernel.frameQuotas</tt>, the sum of the quotas of the
+	 * processes that are not swapped out, their number, and how long they
+	 * have run for in all; the processes swapped out, oldest first.
+	 */
+	private static int demand, active;
+	private static long progress;
+	private static LinkedList<VMProcess> suspended = new LinkedList<VMProcess>();
+	static int suspensions;
+	private static final int minQuota = 2;
+	/** The next mapping of the physical page of each page; see <tt>CoreMap</tt>. */
+	VMProcess[] nextOwner;
+	int[] nextVPN;
 	private TranslationEntry[] store = new TranslationEntry[TLBSize];
 	private static final int TLBSize = Machine.processor().getTLBSize();
-	private static HashMap<Integer, Pair> mem = new HashMap<Integer, Pair>();
+	private static final TranslationEntry invalid = new TranslationEntry(-1, -1, false, false, false, false);
 }